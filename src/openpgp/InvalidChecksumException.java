@@ -0,0 +1,34 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.IOException;
+
+/*
+ * Thrown if the Modification Detection Code packet at the end of the
+ * encrypted data is missing or does not match the decrypted data
+ */
+@SuppressWarnings("serial")
+public class InvalidChecksumException extends IOException {
+
+	public InvalidChecksumException(String msg) {
+		super(msg);
+	}
+
+}
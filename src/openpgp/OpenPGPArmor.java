@@ -0,0 +1,99 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+/*
+ * Base64 tables and CRC-24 for the ASCII armor (RFC 4880 6.)
+ */
+class OpenPGPArmor {
+	static final String BEGIN = "-----BEGIN PGP MESSAGE-----";
+	static final String END = "-----END PGP MESSAGE-----";
+
+	// 48 input bytes per line of 64 characters
+	static final int LINE_BYTES = 48;
+
+	static final byte[] ENCODE = ("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+			+ "abcdefghijklmnopqrstuvwxyz0123456789+/").getBytes();
+
+	// -1 marks characters, that are no base64 digits
+	static final byte[] DECODE = new byte[256];
+
+	private static final int CRC24_INIT = 0xB704CE;
+	private static final int CRC24_POLY = 0x1864CFB;
+
+	/*
+	 * slice-by-8 tables: CRC_TABLE[k][i] is the crc of byte i followed by k
+	 * zero bytes
+	 */
+	private static final int[][] CRC_TABLE = new int[8][256];
+
+	static {
+		for (int i = 0; i < 256; i++)
+			DECODE[i] = -1;
+		for (int i = 0; i < ENCODE.length; i++)
+			DECODE[ENCODE[i]] = (byte) i;
+
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 16;
+			for (int j = 0; j < 8; j++) {
+				crc <<= 1;
+				if ((crc & 0x1000000) != 0)
+					crc ^= CRC24_POLY;
+			}
+			CRC_TABLE[0][i] = crc;
+		}
+		for (int k = 1; k < 8; k++) {
+			for (int i = 0; i < 256; i++) {
+				int c = CRC_TABLE[k - 1][i];
+				CRC_TABLE[k][i] = ((c << 8) & 0xFFFFFF)
+						^ CRC_TABLE[0][(c >> 16) & 0xFF];
+			}
+		}
+	}
+
+	static int crc24Init() {
+		return CRC24_INIT;
+	}
+
+	static int crc24(int crc, byte[] b, int off, int len) {
+		int[] t0 = CRC_TABLE[0], t1 = CRC_TABLE[1], t2 = CRC_TABLE[2], t3 = CRC_TABLE[3];
+		int[] t4 = CRC_TABLE[4], t5 = CRC_TABLE[5], t6 = CRC_TABLE[6], t7 = CRC_TABLE[7];
+
+		// the 24 bit register lines up with the first 3 of 8 bytes
+		while (len >= 8) {
+			int x = crc ^ ((b[off] & 0xFF) << 16)
+					^ ((b[off + 1] & 0xFF) << 8) ^ (b[off + 2] & 0xFF);
+			crc = t7[(x >> 16) & 0xFF] ^ t6[(x >> 8) & 0xFF]
+					^ t5[x & 0xFF] ^ t4[b[off + 3] & 0xFF]
+					^ t3[b[off + 4] & 0xFF] ^ t2[b[off + 5] & 0xFF]
+					^ t1[b[off + 6] & 0xFF] ^ t0[b[off + 7] & 0xFF];
+			off += 8;
+			len -= 8;
+		}
+
+		while (len > 0) {
+			crc = ((crc << 8) & 0xFFFFFF)
+					^ t0[((crc >> 16) ^ b[off]) & 0xFF];
+			off++;
+			len--;
+		}
+
+		return crc;
+	}
+}
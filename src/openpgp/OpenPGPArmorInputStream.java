@@ -0,0 +1,334 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Decodes ASCII armored OpenPGP data. OpenPGPFactory.getInputStream()
+ * detects armored input and uses this stream automatically.
+ */
+public class OpenPGPArmorInputStream extends FilterInputStream {
+	private static final int BODY = 0;
+	private static final int CHECKSUM = 1;
+	private static final int TRAILER = 2;
+	private static final int END = 3;
+
+	// a header line must not be longer
+	private static final int MAX_LINE = 4096;
+
+	private byte[] inBuf;
+	private int inPos = 0;
+	private int inLen = 0;
+
+	private byte[] buf;
+	private int pos = 0;
+	private int len = 0;
+
+	private int state = BODY;
+	private boolean lineStart = true;
+	private boolean padded = false;
+	private int quantum = 0;
+	private int quantumLen = 0;
+
+	private int crc = OpenPGPArmor.crc24Init();
+	private int checksum = -1;
+
+	private Map<String, String> headers = new LinkedHashMap<String, String>();
+
+	public OpenPGPArmorInputStream(InputStream in) throws IOException {
+		this(in, 8192);
+	}
+
+	public OpenPGPArmorInputStream(InputStream in, int buffersize)
+			throws IOException {
+		super(in);
+		inBuf = new byte[Math.max(buffersize, 512)];
+		buf = new byte[inBuf.length / 4 * 3 + 3];
+
+		String l;
+		do {
+			l = readLine();
+			if (l == null)
+				throw new IOException("No armor header found");
+		} while (!l.trim().equals(OpenPGPArmor.BEGIN));
+
+		while ((l = readLine()) != null && !l.trim().isEmpty()) {
+			int i = l.indexOf(": ");
+			if (i < 0)
+				throw new IOException("Invalid armor header");
+			headers.put(l.substring(0, i), l.substring(i + 2).trim());
+		}
+		if (l == null)
+			throw new EOFException("Not enough input");
+	}
+
+	/*
+	 * true if the first byte of a stream indicates armored data, binary
+	 * packets always have the highest bit set
+	 */
+	public static boolean checkStreamType(int first) {
+		return first != -1 && (first & 0x80) == 0;
+	}
+
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	/*
+	 * Raw input that was read past the end of the armor, starting with the
+	 * end line. Only valid after read() returned -1.
+	 */
+	byte[] getRemainingInput() {
+		return Arrays.copyOfRange(inBuf, inPos, inLen);
+	}
+
+	private int fillRaw() throws IOException {
+		if (inPos < inLen)
+			return inLen - inPos;
+		inPos = 0;
+		inLen = 0;
+		int n = in.read(inBuf, 0, inBuf.length);
+		if (n > 0)
+			inLen = n;
+		return n;
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			if (fillRaw() < 0)
+				return sb.length() > 0 ? sb.toString() : null;
+			int c = inBuf[inPos++] & 0xFF;
+			if (c == '\n')
+				return sb.toString();
+			if (c != '\r')
+				sb.append((char) c);
+			if (sb.length() > MAX_LINE)
+				throw new IOException("Armor header line too long");
+		}
+	}
+
+	/*
+	 * decodes the available raw input in one go
+	 */
+	private int fill() throws IOException {
+		pos = 0;
+		len = 0;
+
+		while (len == 0 && state != END) {
+			if (fillRaw() < 0)
+				throw new EOFException("Unexpected end of armor");
+
+			if (state == BODY) {
+				decodeBody();
+			} else {
+				decodeTrailer();
+			}
+		}
+
+		if (len > 0) {
+			crc = OpenPGPArmor.crc24(crc, buf, 0, len);
+		} else if (checksum != -1 && checksum != crc) {
+			throw new IOException("Armor checksum mismatch");
+		}
+		return len;
+	}
+
+	private void decodeBody() throws IOException {
+		byte[] dec = OpenPGPArmor.DECODE;
+		byte[] b = inBuf;
+		byte[] o = buf;
+		int p = inPos;
+		int end = inLen;
+		int q = quantum;
+		int ql = quantumLen;
+		int l = len;
+
+		while (p < end) {
+			// fast path for whole quantums inside a line
+			if (ql == 0 && !padded) {
+				while (p + 4 <= end) {
+					int v0 = dec[b[p] & 0xFF];
+					int v1 = dec[b[p + 1] & 0xFF];
+					int v2 = dec[b[p + 2] & 0xFF];
+					int v3 = dec[b[p + 3] & 0xFF];
+					if ((v0 | v1 | v2 | v3) < 0)
+						break;
+					int x = (v0 << 18) | (v1 << 12) | (v2 << 6) | v3;
+					o[l] = (byte) (x >> 16);
+					o[l + 1] = (byte) (x >> 8);
+					o[l + 2] = (byte) x;
+					l += 3;
+					p += 4;
+					lineStart = false;
+				}
+				if (p == end)
+					break;
+			}
+
+			int c = b[p] & 0xFF;
+			int v = dec[c];
+			if (v >= 0 && !padded) {
+				q = (q << 6) | v;
+				p++;
+				if (++ql == 4) {
+					o[l] = (byte) (q >> 16);
+					o[l + 1] = (byte) (q >> 8);
+					o[l + 2] = (byte) q;
+					l += 3;
+					q = 0;
+					ql = 0;
+				}
+				lineStart = false;
+			} else if (c == '\n') {
+				lineStart = true;
+				p++;
+			} else if (c == '\r' || c == ' ' || c == '\t') {
+				p++;
+			} else if (c == '=' && lineStart && ql == 0) {
+				state = CHECKSUM;
+				quantum = 0;
+				quantumLen = 0;
+				inPos = p + 1;
+				len = l;
+				return;
+			} else if (c == '=' && ql >= 2) {
+				// padding at the end of the data
+				if (ql == 2) {
+					o[l++] = (byte) (q >> 4);
+				} else {
+					o[l++] = (byte) (q >> 10);
+					o[l++] = (byte) (q >> 2);
+				}
+				q = 0;
+				ql = 0;
+				padded = true;
+				p++;
+			} else if (c == '=' && padded) {
+				p++;
+			} else if (c == '-' && lineStart && ql == 0) {
+				state = TRAILER;
+				inPos = p;
+				len = l;
+				return;
+			} else {
+				throw new IOException("Invalid character in armor");
+			}
+		}
+
+		quantum = q;
+		quantumLen = ql;
+		inPos = p;
+		len = l;
+	}
+
+	private void decodeTrailer() throws IOException {
+		while (inPos < inLen) {
+			int c = inBuf[inPos] & 0xFF;
+
+			if (state == CHECKSUM) {
+				inPos++;
+				int v = OpenPGPArmor.DECODE[c];
+				if (v >= 0) {
+					quantum = (quantum << 6) | v;
+					if (++quantumLen == 4) {
+						checksum = quantum;
+						state = TRAILER;
+						lineStart = false;
+					}
+				} else if (c != '\r' && c != '\n' && c != ' ') {
+					throw new IOException("Invalid armor checksum");
+				}
+			} else {
+				// everything up to the end line is ignored
+				if (c == '-' && lineStart) {
+					state = END;
+					return;
+				}
+				lineStart = c == '\n';
+				inPos++;
+			}
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (len == 0 && fill() == 0)
+			return -1;
+		len--;
+		return buf[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (b == null) {
+			throw new NullPointerException();
+		} else if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		} else if (len == 0) {
+			return 0;
+		}
+
+		if (this.len == 0 && fill() == 0)
+			return -1;
+
+		int l = Math.min(len, this.len);
+		System.arraycopy(buf, pos, b, off, l);
+		pos += l;
+		this.len -= l;
+		return l;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long res = 0;
+		while (n > 0) {
+			if (this.len == 0 && fill() == 0)
+				break;
+			int l = (int) Math.min(n, this.len);
+			pos += l;
+			this.len -= l;
+			n -= l;
+			res += l;
+		}
+		return res;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return len;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+
+/*
+ * ASCII armor for binary OpenPGP data. It is meant to be passed to
+ * OpenPGPFactory.getOutputStream().
+ */
+public class OpenPGPArmorOutputStream extends FilterOutputStream {
+	// 64 lines of 64 characters and a newline
+	private static final int LINES = 64;
+
+	private byte[] outBuf = new byte[LINES * 65];
+	private int outPos = 0;
+
+	// bytes of an incomplete line
+	private byte[] line = new byte[OpenPGPArmor.LINE_BYTES];
+	private int linePos = 0;
+
+	private int crc = OpenPGPArmor.crc24Init();
+	private boolean closed = false;
+
+	public OpenPGPArmorOutputStream(OutputStream out) throws IOException {
+		this(out, null);
+	}
+
+	public OpenPGPArmorOutputStream(OutputStream out,
+			Map<String, String> headers) throws IOException {
+		super(out);
+
+		StringBuilder sb = new StringBuilder(OpenPGPArmor.BEGIN).append('\n');
+		if (headers != null) {
+			for (Map.Entry<String, String> e : headers.entrySet()) {
+				sb.append(e.getKey()).append(": ").append(e.getValue())
+						.append('\n');
+			}
+		}
+		sb.append('\n');
+		out.write(sb.toString().getBytes("UTF-8"));
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		write(new byte[] { (byte) c }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		crc = OpenPGPArmor.crc24(crc, b, off, len);
+
+		// complete a started line
+		if (linePos > 0) {
+			int n = Math.min(len, OpenPGPArmor.LINE_BYTES - linePos);
+			System.arraycopy(b, off, line, linePos, n);
+			linePos += n;
+			off += n;
+			len -= n;
+			if (linePos < OpenPGPArmor.LINE_BYTES)
+				return;
+			encodeLine(line, 0, OpenPGPArmor.LINE_BYTES);
+			linePos = 0;
+		}
+
+		// encode full lines directly from the input
+		while (len >= OpenPGPArmor.LINE_BYTES) {
+			encodeLine(b, off, OpenPGPArmor.LINE_BYTES);
+			off += OpenPGPArmor.LINE_BYTES;
+			len -= OpenPGPArmor.LINE_BYTES;
+		}
+
+		if (len > 0) {
+			System.arraycopy(b, off, line, 0, len);
+			linePos = len;
+		}
+	}
+
+	private void encodeLine(byte[] b, int off, int len) throws IOException {
+		if (outBuf.length - outPos < 65) {
+			out.write(outBuf, 0, outPos);
+			outPos = 0;
+		}
+		outPos = encode(b, off, len, outBuf, outPos);
+		outBuf[outPos++] = '\n';
+	}
+
+	private static int encode(byte[] b, int off, int len, byte[] o, int p) {
+		byte[] enc = OpenPGPArmor.ENCODE;
+		int end = off + len - len % 3;
+		while (off < end) {
+			int v = ((b[off] & 0xFF) << 16) | ((b[off + 1] & 0xFF) << 8)
+					| (b[off + 2] & 0xFF);
+			o[p] = enc[v >>> 18];
+			o[p + 1] = enc[(v >>> 12) & 0x3F];
+			o[p + 2] = enc[(v >>> 6) & 0x3F];
+			o[p + 3] = enc[v & 0x3F];
+			off += 3;
+			p += 4;
+		}
+
+		int rest = len % 3;
+		if (rest > 0) {
+			int v = (b[off] & 0xFF) << 16;
+			if (rest == 2)
+				v |= (b[off + 1] & 0xFF) << 8;
+			o[p] = enc[v >>> 18];
+			o[p + 1] = enc[(v >>> 12) & 0x3F];
+			o[p + 2] = rest == 2 ? enc[(v >>> 6) & 0x3F] : (byte) '=';
+			o[p + 3] = '=';
+			p += 4;
+		}
+		return p;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		// only complete lines can be written
+		if (outPos > 0) {
+			out.write(outBuf, 0, outPos);
+			outPos = 0;
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+
+		if (linePos > 0) {
+			encodeLine(line, 0, linePos);
+			linePos = 0;
+		}
+
+		byte[] c = { (byte) (crc >> 16), (byte) (crc >> 8), (byte) crc };
+		if (outBuf.length - outPos < 6) {
+			out.write(outBuf, 0, outPos);
+			outPos = 0;
+		}
+		outBuf[outPos++] = '=';
+		outPos = encode(c, 0, 3, outBuf, outPos);
+		outBuf[outPos++] = '\n';
+		out.write(outBuf, 0, outPos);
+		outPos = 0;
+
+		out.write((OpenPGPArmor.END + "\n").getBytes("UTF-8"));
+		out.close();
+	}
+}
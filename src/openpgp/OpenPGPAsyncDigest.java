@@ -0,0 +1,175 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * MessageDigest that hashes on a separate thread. The data is copied into
+ * a fixed number of buffers, digest() waits until all of it is hashed.
+ */
+class OpenPGPAsyncDigest extends MessageDigest {
+	private static class Chunk {
+		byte[] b;
+		int len;
+
+		Chunk(int size) {
+			b = new byte[size];
+		}
+	}
+
+	private static final Chunk STOP = new Chunk(0);
+	private static final Chunk DIGEST = new Chunk(0);
+
+	private final MessageDigest md;
+	private final BlockingQueue<Chunk> full;
+	private final BlockingQueue<Chunk> free;
+	private final BlockingQueue<byte[]> results = new ArrayBlockingQueue<byte[]>(1);
+
+	private Chunk current;
+
+	OpenPGPAsyncDigest(String algorithm, int bufsize, int depth)
+			throws NoSuchAlgorithmException {
+		super(algorithm);
+		md = MessageDigest.getInstance(algorithm);
+		// one more for STOP or DIGEST
+		full = new ArrayBlockingQueue<Chunk>(depth + 1);
+		free = new ArrayBlockingQueue<Chunk>(depth);
+		for (int i = 0; i < depth; i++) {
+			free.add(new Chunk(bufsize));
+		}
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				consume();
+			}
+		}, "OpenPGP " + algorithm);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void consume() {
+		try {
+			while (true) {
+				Chunk c = full.take();
+				if (c == STOP) {
+					return;
+				} else if (c == DIGEST) {
+					results.put(md.digest());
+				} else {
+					md.update(c.b, 0, c.len);
+					free.put(c);
+				}
+			}
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private static <T> void put(BlockingQueue<T> q, T c) {
+		try {
+			q.put(c);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static <T> T take(BlockingQueue<T> q) {
+		try {
+			return q.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void submit() {
+		if (current != null) {
+			put(full, current);
+			current = null;
+		}
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		engineUpdate(new byte[] { input }, 0, 1);
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		while (len > 0) {
+			if (current == null) {
+				current = take(free);
+				current.len = 0;
+			}
+
+			int n = Math.min(len, current.b.length - current.len);
+			System.arraycopy(input, offset, current.b, current.len, n);
+			current.len += n;
+			offset += n;
+			len -= n;
+
+			if (current.len == current.b.length)
+				submit();
+		}
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		submit();
+		put(full, DIGEST);
+		return take(results);
+	}
+
+	@Override
+	protected int engineDigest(byte[] buf, int offset, int len)
+			throws DigestException {
+		byte[] d = engineDigest();
+		if (len < d.length)
+			throw new DigestException("Buffer too short");
+		System.arraycopy(d, 0, buf, offset, d.length);
+		return d.length;
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return md.getDigestLength();
+	}
+
+	@Override
+	protected void engineReset() {
+		engineDigest();
+	}
+
+	/*
+	 * stops the thread, the digest cannot be used afterwards
+	 */
+	void shutdown() {
+		if (current != null) {
+			free.offer(current);
+			current = null;
+		}
+		full.offer(STOP);
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+ * In-memory benchmark of stream open latency and throughput, to compare
+ * releases and options on the same machine.
+ *
+ * java openpgp.OpenPGPCommand bench [-b bufsize] [-c algo] [-s MB] [-i opens] [-n] [-z]
+ *
+ * -z compares the throughput and ratio of all compression algorithms on
+ * log like data instead
+ */
+public class OpenPGPBenchmark {
+	private static final String PASSWORD = "benchmark";
+
+	private OpenPGPCompression compression = OpenPGPCompression.ZLIB;
+	private int bufsize = 64 * 1024;
+	private int size = 64;
+	private int opens = 200;
+	private boolean compare = false;
+
+	private static final OutputStream NULL = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		OpenPGPBenchmark b = new OpenPGPBenchmark();
+
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("-b") && i + 1 < args.length) {
+				b.bufsize = Integer.parseInt(args[++i]);
+			} else if (a.equals("-c") && i + 1 < args.length) {
+				b.compression = OpenPGPCompression.valueOf(args[++i]
+						.toUpperCase(Locale.ROOT));
+			} else if (a.equals("-s") && i + 1 < args.length) {
+				b.size = Integer.parseInt(args[++i]);
+			} else if (a.equals("-i") && i + 1 < args.length) {
+				b.opens = Integer.parseInt(args[++i]);
+			} else if (a.equals("-z")) {
+				b.compare = true;
+			} else if (a.equals("-n")) {
+				// compare with the behaviour before the pool existed
+				OpenPGPCryptoPool.setEnabled(false);
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + a);
+			}
+		}
+
+		if (b.compare) {
+			b.compareCompression();
+		} else {
+			b.run();
+		}
+	}
+
+	private void run() throws Exception {
+		byte[] small = encrypt(new byte[100]);
+
+		// warm up the JIT and the pool
+		openLatency(small, opens / 4 + 1);
+		System.out.println(openLatency(small, opens));
+
+		byte[] data = new byte[size * 1024 * 1024];
+		new Random(42).nextBytes(data);
+
+		long start = System.nanoTime();
+		byte[] enc = encrypt(data);
+		long t1 = System.nanoTime();
+		decrypt(enc);
+		long t2 = System.nanoTime();
+
+		System.out.println(String.format(Locale.ROOT,
+				"%s, %d bytes buffer: encrypt %.1f MB/s, decrypt %.1f MB/s",
+				compression, bufsize, size / ((t1 - start) / 1e9), size
+						/ ((t2 - t1) / 1e9)));
+
+		boolean bulk = OpenPGPCFBDecryptor.calibrate();
+		double[] cfb = OpenPGPCFBDecryptor.measure();
+		System.out.println(String.format(Locale.ROOT,
+				"CFB decryption: jce %.1f MB/s, ecb %.1f MB/s, using %s",
+				cfb[0], cfb[1], bulk ? "ecb" : "jce"));
+	}
+
+	/*
+	 * Random data does not compress, so the algorithms are compared on
+	 * generated log lines
+	 */
+	private void compareCompression() throws Exception {
+		OpenPGPCompressionCodecs.setEnabled(OpenPGPCompression.LZ4, true);
+		OpenPGPCompressionCodecs.setEnabled(OpenPGPCompression.ZSTD, true);
+
+		byte[] data = logData(size * 1024 * 1024);
+		for (OpenPGPCompression c : OpenPGPCompression.values()) {
+			compression = c;
+			try {
+				// warm up
+				decrypt(encrypt(Arrays.copyOf(data, data.length / 8)));
+
+				long start = System.nanoTime();
+				byte[] enc = encrypt(data);
+				long t1 = System.nanoTime();
+				decrypt(enc);
+				long t2 = System.nanoTime();
+
+				System.out.println(String.format(Locale.ROOT,
+						"%-6s ratio %5.2f, encrypt %6.1f MB/s, decrypt %6.1f MB/s",
+						c, data.length / (double) enc.length, size
+								/ ((t1 - start) / 1e9), size
+								/ ((t2 - t1) / 1e9)));
+			} catch (IOException e) {
+				System.out.println(String.format(Locale.ROOT, "%-6s %s", c,
+						e.getMessage()));
+			}
+		}
+	}
+
+	private static byte[] logData(int len) {
+		String[] levels = { "INFO", "WARN", "DEBUG", "ERROR" };
+		String[] words = { "request", "user", "session", "cache", "miss",
+				"hit", "query", "took", "ms", "ok", "failed", "retry" };
+		Random r = new Random(42);
+		StringBuilder sb = new StringBuilder(len + 200);
+		while (sb.length() < len) {
+			sb.append(String.format(Locale.ROOT,
+					"2014-06-01T12:%02d:%02d.%03d %s [worker-%d]",
+					r.nextInt(60), r.nextInt(60), r.nextInt(1000),
+					levels[r.nextInt(levels.length)], r.nextInt(16)));
+			for (int i = 0; i < 8; i++) {
+				sb.append(' ').append(words[r.nextInt(words.length)]);
+				if (i % 3 == 0) {
+					sb.append('=').append(r.nextInt(100000));
+				}
+			}
+			sb.append('\n');
+		}
+		return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.US_ASCII),
+				len);
+	}
+
+	private String openLatency(byte[] small, int count) throws Exception {
+		long out = 0;
+		long in = 0;
+		for (int i = 0; i < count; i++) {
+			long t = System.nanoTime();
+			OutputStream os = OpenPGPFactory.getOutputStream(NULL, PASSWORD,
+					compression, bufsize);
+			os.close();
+			long t1 = System.nanoTime();
+			decrypt(small);
+			long t2 = System.nanoTime();
+
+			out += t1 - t;
+			in += t2 - t1;
+		}
+
+		return String.format(Locale.ROOT,
+				"open+close: output %.1f us, input %.1f us", out / 1e3
+						/ count, in / 1e3 / count);
+	}
+
+	private byte[] encrypt(byte[] data) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(
+				data.length + data.length / 64 + 1024);
+		OutputStream os = OpenPGPFactory.getOutputStream(bos, PASSWORD,
+				compression, bufsize);
+		os.write(data);
+		os.close();
+		return bos.toByteArray();
+	}
+
+	private void decrypt(byte[] enc) throws Exception {
+		InputStream is = OpenPGPFactory.getInputStream(
+				new ByteArrayInputStream(enc), PASSWORD, bufsize);
+		byte[] b = new byte[bufsize];
+		while (is.read(b) != -1)
+			;
+		is.close();
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.util.Arrays;
+
+/*
+ * Buffers of one stream stack, which the next stack takes over once the
+ * previous one is finished, so that reading many small messages does not
+ * allocate new buffers for every message. Only one stack may use it at a
+ * time. Not thread safe.
+ */
+class OpenPGPBuffers {
+	static final int CIPHER = 0;
+	static final int CIPHER_OUT = 1;
+	static final int COMPRESSION = 2;
+	static final int LITERAL = 3;
+
+	private final byte[][] bufs = new byte[4][];
+
+	/*
+	 * The content is undefined, the caller has to overwrite it
+	 */
+	byte[] get(int slot, int size) {
+		byte[] b = bufs[slot];
+		if (b == null || b.length != size) {
+			b = new byte[size];
+			bufs[slot] = b;
+		}
+		return b;
+	}
+
+	// overwrites the data that was left in the buffers
+	void clear() {
+		for (int i = 0; i < bufs.length; i++) {
+			if (bufs[i] != null) {
+				Arrays.fill(bufs[i], (byte) 0);
+				bufs[i] = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * AES/CFB128 decryption with an all zero IV.
+ *
+ * Every plaintext block is P[i] = C[i] ^ E(C[i-1]), so unlike encryption
+ * all the block cipher calls of a buffer are independent. The bulk engine
+ * runs AES/ECB over the whole buffer at once, which the JDK can pipeline,
+ * and XORs the result with the ciphertext. Unlike the JCE cipher it never
+ * holds back incomplete blocks.
+ *
+ * The JCE engine is used unless calibrate() found the bulk engine to be
+ * faster, see OpenPGPCryptoPool.prewarm(). -Dopenpgp.cfb=ecb or jce forces
+ * one.
+ */
+class OpenPGPCFBDecryptor {
+	private static final int BLOCK = 16;
+	// upper limit of the temporary buffer of the bulk engine
+	private static final int MAX_CHUNK = 64 * 1024;
+
+	private static volatile Boolean bulkDefault;
+
+	private final boolean bulk;
+	private Cipher cipher;
+
+	// bulk engine: last complete ciphertext block and the current one
+	private final byte[] feedback = new byte[BLOCK];
+	private final byte[] current = new byte[BLOCK];
+	private final byte[] keystream = new byte[BLOCK];
+	// bytes of the current block already decrypted
+	private int blockPos = 0;
+	private byte[] tmp;
+
+	/*
+	 * for snapshots: the last two blocks of ciphertext, the number of
+	 * bytes so far and the bytes the JCE engine still holds back
+	 */
+	private final byte[] history = new byte[2 * BLOCK];
+	private long count = 0;
+	private int held = 0;
+
+	OpenPGPCFBDecryptor() throws NoSuchAlgorithmException {
+		this(useBulk());
+	}
+
+	OpenPGPCFBDecryptor(boolean bulk) throws NoSuchAlgorithmException {
+		this.bulk = bulk;
+		if (bulk) {
+			cipher = OpenPGPCryptoPool.getBlockCipher();
+		} else {
+			cipher = OpenPGPCryptoPool.getCipher();
+		}
+	}
+
+	boolean isBulk() {
+		return bulk;
+	}
+
+	void init(SecretKey key) throws InvalidKeyException {
+		count = 0;
+		held = 0;
+		if (bulk) {
+			cipher.init(Cipher.ENCRYPT_MODE, key);
+			Arrays.fill(feedback, (byte) 0);
+			blockPos = 0;
+		} else {
+			try {
+				cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(
+						new byte[BLOCK]));
+			} catch (InvalidAlgorithmParameterException e) {
+				// params should be ok
+				throw new InvalidKeyException(e);
+			}
+		}
+	}
+
+	/*
+	 * Same contract as Cipher.update(), the input and output must not
+	 * overlap
+	 */
+	int update(byte[] in, int off, int len, byte[] out, int outOff)
+			throws ShortBufferException {
+		record(in, off, len);
+		if (!bulk) {
+			int n = cipher.update(in, off, len, out, outOff);
+			held += len - n;
+			return n;
+		}
+
+		int res = len;
+
+		// finish the current block
+		if (blockPos > 0) {
+			int n = Math.min(len, BLOCK - blockPos);
+			for (int i = 0; i < n; i++) {
+				byte c = in[off + i];
+				out[outOff + i] = (byte) (c ^ keystream[blockPos + i]);
+				current[blockPos + i] = c;
+			}
+			blockPos += n;
+			off += n;
+			outOff += n;
+			len -= n;
+
+			if (blockPos == BLOCK) {
+				System.arraycopy(current, 0, feedback, 0, BLOCK);
+				blockPos = 0;
+			}
+		}
+
+		// whole blocks with a single call of the block cipher
+		while (len >= BLOCK) {
+			int n = Math.min(len - len % BLOCK, MAX_CHUNK);
+			if (tmp == null || tmp.length < n) {
+				tmp = new byte[Math.max(n, 4096)];
+			}
+
+			System.arraycopy(feedback, 0, tmp, 0, BLOCK);
+			System.arraycopy(in, off, tmp, BLOCK, n - BLOCK);
+			cipher.update(tmp, 0, n, tmp, 0);
+			System.arraycopy(in, off + n - BLOCK, feedback, 0, BLOCK);
+
+			for (int i = 0; i < n; i++) {
+				out[outOff + i] = (byte) (in[off + i] ^ tmp[i]);
+			}
+			off += n;
+			outOff += n;
+			len -= n;
+		}
+
+		// start a new block
+		if (len > 0) {
+			cipher.update(feedback, 0, BLOCK, keystream, 0);
+			for (int i = 0; i < len; i++) {
+				byte c = in[off + i];
+				out[outOff + i] = (byte) (c ^ keystream[i]);
+				current[i] = c;
+			}
+			blockPos = len;
+		}
+
+		return res;
+	}
+
+	int doFinal(byte[] in, int off, int len, byte[] out, int outOff)
+			throws ShortBufferException {
+		if (!bulk) {
+			record(in, off, len);
+			held = 0;
+			try {
+				return cipher.doFinal(in, off, len, out, outOff);
+			} catch (IllegalBlockSizeException | BadPaddingException e) {
+				// cannot occur without padding
+				throw new IllegalStateException(e);
+			}
+		}
+		return update(in, off, len, out, outOff);
+	}
+
+	private void record(byte[] in, int off, int len) {
+		if (len >= history.length) {
+			System.arraycopy(in, off + len - history.length, history, 0,
+					history.length);
+		} else {
+			System.arraycopy(history, len, history, 0, history.length - len);
+			System.arraycopy(in, off, history, history.length - len, len);
+		}
+		count += len;
+	}
+
+	byte[] getHistory() {
+		return history.clone();
+	}
+
+	long getCount() {
+		return count;
+	}
+
+	int getHeld() {
+		return held;
+	}
+
+	/*
+	 * Continues at the position of another decryptor, which has seen
+	 * count bytes ending with history. Only the bulk engine can start
+	 * within a block. The plaintext of the held bytes, which the other one
+	 * did not return yet, is written to out.
+	 */
+	int resume(SecretKey key, byte[] history, long count, int held,
+			byte[] out, int outOff) throws InvalidKeyException,
+			ShortBufferException {
+		if (!bulk) {
+			throw new IllegalStateException("Only the bulk engine can resume");
+		}
+		init(key);
+		System.arraycopy(history, 0, this.history, 0, this.history.length);
+		this.count = count;
+
+		int r = (int) (count % BLOCK);
+		System.arraycopy(history, BLOCK - r, feedback, 0, BLOCK);
+		if (r > 0) {
+			cipher.update(feedback, 0, BLOCK, keystream, 0);
+			System.arraycopy(history, 2 * BLOCK - r, current, 0, r);
+			blockPos = r;
+			for (int i = r - held; i < r; i++) {
+				out[outOff++] = (byte) (current[i] ^ keystream[i]);
+			}
+		}
+		return held;
+	}
+
+	/*
+	 * Gives the cipher back to the pool, the object cannot be used after
+	 * this
+	 */
+	void release() {
+		if (bulk) {
+			OpenPGPCryptoPool.releaseBlockCipher(cipher);
+		} else {
+			OpenPGPCryptoPool.release(cipher);
+		}
+		cipher = null;
+	}
+
+	/*
+	 * The bulk engine needs the JIT to be fast, so it is only chosen by
+	 * the property or by an explicit calibrate()
+	 */
+	static boolean useBulk() {
+		Boolean b = bulkDefault;
+		if (b != null)
+			return b;
+
+		b = forced();
+		if (b == null) {
+			b = false;
+		}
+		bulkDefault = b;
+		return b;
+	}
+
+	private static Boolean forced() {
+		String p = System.getProperty("openpgp.cfb");
+		if ("ecb".equals(p)) {
+			return true;
+		} else if ("jce".equals(p)) {
+			return false;
+		}
+		return null;
+	}
+
+	/*
+	 * Measures until two rounds agree within 10% and selects the faster
+	 * engine for the streams opened afterwards. Takes a few hundred
+	 * milliseconds in a fresh JVM.
+	 */
+	static boolean calibrate() {
+		Boolean b = forced();
+		if (b == null) {
+			double[] last = measure();
+			for (int i = 0; i < 8; i++) {
+				double[] r = measure();
+				boolean stable = Math.abs(r[0] - last[0]) < r[0] / 10
+						&& Math.abs(r[1] - last[1]) < r[1] / 10;
+				last = r;
+				if (stable)
+					break;
+			}
+			b = last[1] > last[0];
+		}
+		bulkDefault = b;
+		return b;
+	}
+
+	/*
+	 * Decryption throughput in MB/s of the JCE and the bulk engine. Both run
+	 * alternately over a 256K buffer, so that they get the same chance to
+	 * be compiled by the JIT, and the best round counts.
+	 */
+	static double[] measure() {
+		double[] res = new double[2];
+		try {
+			byte[] in = new byte[256 * 1024];
+			new Random(0).nextBytes(in);
+			byte[] out = new byte[in.length];
+			SecretKey secret = new SecretKeySpec(new byte[32], "AES");
+
+			OpenPGPCFBDecryptor[] d = { new OpenPGPCFBDecryptor(false),
+					new OpenPGPCFBDecryptor(true) };
+			long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+			for (int round = 0; round < 16; round++) {
+				for (int i = 0; i < 2; i++) {
+					long t = System.nanoTime();
+					d[i].init(secret);
+					d[i].doFinal(in, 0, in.length, out, 0);
+					best[i] = Math.min(best[i], System.nanoTime() - t);
+				}
+			}
+			for (int i = 0; i < 2; i++) {
+				d[i].release();
+				res[i] = in.length / 1048576.0 / (Math.max(best[i], 1) / 1e9);
+			}
+		} catch (Exception e) {
+			// the JCE engine always works
+			res[0] = 1.0;
+		}
+		return res;
+	}
+}
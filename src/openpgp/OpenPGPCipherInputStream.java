@@ -18,25 +18,25 @@
 
 package openpgp;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
-import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.ShortBufferException;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class OpenPGPCipherInputStream extends OpenPGPFilterInputStream {
-	private Cipher cipher;
-	private String pass;
+	private OpenPGPCFBDecryptor cipher;
 	private MessageDigest hash;
+	// kept for snapshots
+	private SecretKey secret;
 
 	private byte[] outBuf;
 	private boolean hashChecked = false;
@@ -50,7 +50,55 @@ public class OpenPGPCipherInputStream extends OpenPGPFilterInputStream {
 	public OpenPGPCipherInputStream(InputStream is, String password,
 			int buffersize) throws NoSuchAlgorithmException, IOException,
 			WrongPasswordException {
-		super(is, buffersize);
+		this(is, password, buffersize, false);
+	}
+
+	/*
+	 * If pipelined is true, the SHA-1 hash for the modification detection
+	 * code is calculated on a separate thread
+	 */
+	public OpenPGPCipherInputStream(InputStream is, String password,
+			int buffersize, boolean pipelined)
+			throws NoSuchAlgorithmException, IOException,
+			WrongPasswordException {
+		this(is, password, buffersize, pipelined, null, null);
+	}
+
+	/*
+	 * keys caches the derived keys and buffers holds the buffers between
+	 * several messages
+	 */
+	OpenPGPCipherInputStream(InputStream is, String password,
+			int buffersize, boolean pipelined, OpenPGPKeyCache keys,
+			OpenPGPBuffers buffers) throws NoSuchAlgorithmException,
+			IOException, WrongPasswordException {
+		this(is, password.getBytes("UTF-8"), null, buffersize, pipelined,
+				keys, buffers);
+	}
+
+	/*
+	 * Decrypts with a 256 bit AES key instead of a password, no key
+	 * derivation takes place. A wrong key causes a WrongPasswordException.
+	 */
+	public OpenPGPCipherInputStream(InputStream is, SecretKey key,
+			int buffersize) throws NoSuchAlgorithmException, IOException,
+			WrongPasswordException {
+		this(is, key, buffersize, false);
+	}
+
+	public OpenPGPCipherInputStream(InputStream is, SecretKey key,
+			int buffersize, boolean pipelined)
+			throws NoSuchAlgorithmException, IOException,
+			WrongPasswordException {
+		this(is, null, OpenPGPSessionKeyPacket.rawKey(key), buffersize,
+				pipelined, null, null);
+	}
+
+	private OpenPGPCipherInputStream(InputStream is, byte[] pw, byte[] kek,
+			int buffersize, boolean pipelined, OpenPGPKeyCache keys,
+			OpenPGPBuffers buffers) throws NoSuchAlgorithmException,
+			IOException, WrongPasswordException {
+		super(is, buffersize, buffers, OpenPGPBuffers.CIPHER);
 
 		/*
 		 * we need an extra buffer because cipher.update() works only
@@ -61,12 +109,30 @@ public class OpenPGPCipherInputStream extends OpenPGPFilterInputStream {
 		 * blocksize data. +88 accounts for possible extra space needed
 		 * for the last 22 bytes
 		 */
-		outBuf = new byte[BUFFERSIZE + 88];
-		// nowrap=true
-		pass = password;
-		hash = MessageDigest.getInstance("SHA-1");
+		outBuf = buffers != null ? buffers.get(OpenPGPBuffers.CIPHER_OUT,
+				BUFFERSIZE + 88) : new byte[BUFFERSIZE + 88];
 
-		initCipher();
+		/*
+		 * first must be one or more Symmetric-Key Encrypted Session Key
+		 * Packets
+		 */
+		List<OpenPGPSessionKeyPacket> keyPackets = new ArrayList<OpenPGPSessionKeyPacket>();
+		if (readBlocking(buf, 0, 1) != 1) {
+			throw new EOFException("Not enough input");
+		}
+		while (buf[0] == (byte) 0xC3 || buf[0] == (byte) 0x8C) {
+			OpenPGPSessionKeyPacket p = OpenPGPSessionKeyPacket.read(in);
+			inputCount += p.getEncodedLength() - 1;
+			keyPackets.add(p);
+
+			if (readBlocking(buf, 0, 1) != 1) {
+				throw new EOFException("Not enough input");
+			}
+		}
+
+		if (keyPackets.isEmpty()) {
+			throw new IOException("Wrong file format");
+		}
 
 		/*
 		 * Sym. Encrypted and Integrity Protected Data Packet read in the
@@ -78,8 +144,8 @@ public class OpenPGPCipherInputStream extends OpenPGPFilterInputStream {
 		 *
 		 * we can be sure, that at least 25 bytes must be there
 		 */
-		if (readBlocking(buf, 0, 39) != 39) {
-			throw new IOException("Not enough input");
+		if (readBlocking(buf, 1, 38) != 38) {
+			throw new EOFException("Not enough input");
 		}
 
 		// packettype
@@ -103,11 +169,40 @@ public class OpenPGPCipherInputStream extends OpenPGPFilterInputStream {
 		packetLen--;
 
 		// decrypt first 18 bytes and check if password is correct
+		boolean found = false;
 		try {
-			if ((len = cipher.update(buf, inputPos, 39 - inputPos, outBuf)) < 18) {
-				throw new IOException("Error decrypting file");
+			for (OpenPGPSessionKeyPacket p : keyPackets) {
+				byte[] key;
+				if (kek != null) {
+					key = p.unwrapKey(kek.clone());
+				} else {
+					key = p.decryptKey(pw, keys);
+				}
+				if (key == null)
+					continue;
+
+				initCipher(key);
+				Arrays.fill(key, (byte) 0);
+				try {
+					if ((len = cipher.update(buf, inputPos, 39 - inputPos, outBuf, 0)) < 18) {
+						throw new IOException("Error decrypting file");
+					}
+				} catch (ShortBufferException e) {/* cannot occur */
+				}
+
+				if (outBuf[14] == outBuf[16] && outBuf[15] == outBuf[17]) {
+					found = true;
+					break;
+				}
+			}
+		} finally {
+			// the password is not needed after the key derivation
+			if (pw != null) {
+				Arrays.fill(pw, (byte) 0);
+			}
+			if (kek != null) {
+				Arrays.fill(kek, (byte) 0);
 			}
-		} catch (ShortBufferException e) {/* cannot occur */
 		}
 		// update ciphlen: subtract the bytes already read in
 		packetLen -= 39 - inputPos;
@@ -116,91 +211,103 @@ public class OpenPGPCipherInputStream extends OpenPGPFilterInputStream {
 		inputLen = 0;
 		inputPos = 0;
 
-		if (outBuf[14] != outBuf[16] || outBuf[15] != outBuf[17]) {
+		if (!found) {
+			if (cipher != null) {
+				cipher.release();
+				cipher = null;
+			}
 			throw new WrongPasswordException("Decryption check failed");
 		}
 
 		// hash decrypted message
+		if (pipelined) {
+			hash = new OpenPGPAsyncDigest("SHA-1", BUFFERSIZE, 4);
+		} else {
+			hash = OpenPGPCryptoPool.getSHA1();
+		}
 		hash.update(outBuf, 0, 18);
 		pos = 18;
 		len -= 18;
 	}
 
-	private void initCipher() throws IOException, NoSuchAlgorithmException {
-		/*
-		 * first must be a Symmetric-Key Encrypted Session Key Packet with
-		 * length 15
-		 */
-		byte[] sessionKey = buf;
-
-		if (readBlocking(sessionKey, 0, 15) != 15) {
-			throw new IOException("Not enough input");
+	/*
+	 * Continues a message from a snapshot. is has to continue the
+	 * original input at snap.getOffset().
+	 */
+	public OpenPGPCipherInputStream(InputStream is, OpenPGPSnapshot snap)
+			throws NoSuchAlgorithmException, IOException {
+		super(is, snap);
+		if (snap.layer != OpenPGPSnapshot.Layer.CIPHER) {
+			throw new IllegalArgumentException(
+					"Not a snapshot of a decryption");
 		}
-
-		if (sessionKey[0] != (byte) 0xC3 && sessionKey[0] != (byte) 0x8C) {
-			throw new IOException("Wrong file format");
-		}
-		// packet header with length,version,symalgo,s2kversion,hashalgo
-		if (sessionKey[1] != 13 || sessionKey[2] != 4 || sessionKey[4] != 3) {
-			throw new IOException("Wrong file format");
-		}
-		int c = (int) sessionKey[14] & 0xFF;
-		int count = (16 + (c & 15)) << ((c >> 4) + 6);
-		// 1024-65011712
-		if (count < 1024 || count > 65011712) {
-			throw new IOException("Wrong file format");
+		outBuf = snap.outBuf.clone();
+		hashChecked = snap.hashChecked;
+		if (!hashChecked) {
+			hash = OpenPGPCipherOutputStream.cloneHash(snap.hash);
 		}
 
-		// 9 means AES256
-		// 8 means SHA256
-		// we only support AES256 with SHA256 at the moment
-		if (sessionKey[3] != 9 || sessionKey[5] != 8) {
-			throw new NoSuchAlgorithmException(
-					"Only AES256 and SHA256 supported");
+		// the plaintext that was held back by the cipher is appended
+		secret = new SecretKeySpec(snap.key, "AES");
+		cipher = new OpenPGPCFBDecryptor(true);
+		try {
+			len += cipher.resume(secret, snap.history, snap.count, snap.held,
+					outBuf, pos + len);
+		} catch (InvalidKeyException | ShortBufferException e) {
+			throw new IOException(e);
 		}
+	}
 
-		byte[] pw = pass.getBytes("UTF-8");
-		int len = pw.length + 8;
-
-		MessageDigest md = MessageDigest.getInstance("SHA-256");
-		while (count > len) {
-			md.update(sessionKey, 6, 8);
-			md.update(pw);
-			count -= len;
+	/*
+	 * The offset of the snapshot includes the input that is still
+	 * buffered, so the input is not flushed.
+	 */
+	@Override
+	public OpenPGPSnapshot snapshot() throws IOException {
+		if (cipher == null) {
+			throw new IOException("Stream closed");
+		}
+		if (in instanceof OpenPGPArmorInputStream) {
+			throw new IOException("Armored streams do not support snapshots");
+		}
+		if (hash instanceof OpenPGPAsyncDigest) {
+			throw new IOException("Pipelined streams do not support snapshots");
 		}
 
-		if (count < 8) {
-			md.update(sessionKey, 6, count);
-		} else {
-			md.update(sessionKey, 6, 8);
-			count -= 8;
-			md.update(pw, 0, count);
+		OpenPGPSnapshot snap = save(OpenPGPSnapshot.Layer.CIPHER);
+		snap.offset = inputCount;
+		snap.outBuf = outBuf.clone();
+		snap.hashChecked = hashChecked;
+		if (!hashChecked) {
+			snap.hash = OpenPGPCipherOutputStream.cloneHash(hash);
 		}
+		snap.key = secret.getEncoded();
+		snap.history = cipher.getHistory();
+		snap.count = cipher.getCount();
+		snap.held = cipher.getHeld();
+		return snap;
+	}
 
-		SecretKey secret = new SecretKeySpec(md.digest(), "AES");
+	private void initCipher(byte[] key) throws NoSuchAlgorithmException {
+		secret = new SecretKeySpec(key, "AES");
 
-		try {
-			cipher = Cipher.getInstance("AES/CFB128/NoPadding");
-		} catch (NoSuchPaddingException e) {
-			// nopadding always exists
+		if (cipher == null) {
+			cipher = new OpenPGPCFBDecryptor();
 		}
 
-		// iv is initialized to all 0x00 by default
-		byte[] iv = new byte[16];
-		IvParameterSpec ips = new IvParameterSpec(iv);
-
 		try {
-			cipher.init(Cipher.DECRYPT_MODE, secret, ips);
+			cipher.init(secret);
 		} catch (InvalidKeyException e) {
 			// should never occur
 			e.printStackTrace();
-		} catch (InvalidAlgorithmParameterException e) {
-			// params should be ok
-			e.printStackTrace();
 		}
 	}
 
 	private void checkHash() throws IOException {
+		if (progress != null) {
+			progress.setPhase(OpenPGPProgressListener.Phase.MDC_CHECK);
+		}
+
 		/*
 		 * force a finish of the data stream, we have extra bufferspace in
 		 * outbuf to account for the last 22 bytes
@@ -211,27 +318,34 @@ public class OpenPGPCipherInputStream extends OpenPGPFilterInputStream {
 		}
 
 		if (packetLen != 0)
-			throw new IOException("Cannot fully read in last packet");
-
-		hash.update(outBuf, pos, len - 20);
+			throw new EOFException("Cannot fully read in last packet");
 
 		if (len < 22)
-			throw new IOException("Error in stream");
+			throw new InvalidChecksumException("Error in stream");
+
+		hash.update(outBuf, pos, len - 20);
 
 		int lastpos = len + pos - 22;
 		if (outBuf[lastpos] != (byte) 0xD3
 				|| outBuf[lastpos + 1] != (byte) 0x14)
-			throw new IOException("Error in stream");
+			throw new InvalidChecksumException("Error in stream");
 
 		byte[] md = hash.digest();
+		if (hash instanceof OpenPGPAsyncDigest) {
+			((OpenPGPAsyncDigest) hash).shutdown();
+		}
 		byte[] md2 = new byte[20];
 		System.arraycopy(outBuf, lastpos + 2, md2, 0, 20);
 
 		if (!Arrays.equals(md, md2))
-			throw new IOException("Invalid checksum at the end");
+			throw new InvalidChecksumException("Invalid checksum at the end");
 
 		len -= 22;
 		hashChecked = true;
+		if (progress != null) {
+			progress.packets++;
+			progress.ciphertext = inputCount;
+		}
 	}
 
 	@Override
@@ -244,9 +358,17 @@ public class OpenPGPCipherInputStream extends OpenPGPFilterInputStream {
 			return -1;
 		}
 
-		fillInputBuf();
+		if (!lastPacketRead() && fillInputBuf() < 0) {
+			throw new EOFException("Unexpected end of stream");
+		}
+		if (progress != null) {
+			progress.ciphertext = inputCount;
+		}
 
 		if (packetLen == 0 && partial) {
+			if (progress != null) {
+				progress.packets++;
+			}
 			decodePacketLen();
 		}
 
@@ -283,7 +405,10 @@ public class OpenPGPCipherInputStream extends OpenPGPFilterInputStream {
 			return 0;
 		}
 
-		if (this.len == 0) {
+		if (this.len < 0) {
+			// already at the end of the stream
+			return -1;
+		} else if (this.len == 0) {
 			int n = 0;
 			pos = 0;
 			while (n == 0) {
@@ -298,7 +423,7 @@ public class OpenPGPCipherInputStream extends OpenPGPFilterInputStream {
 			 * we could be at the end of the stream, so
 			 * we first have to test it
 			 */
-			while (inputLen < 44 && inputRes != -1) {
+			while (inputLen < 44 && inputRes != -1 && !lastPacketRead()) {
 				fillInputBuf();
 			}
 		}
@@ -320,7 +445,10 @@ public class OpenPGPCipherInputStream extends OpenPGPFilterInputStream {
 
 	@Override
 	public int peek() throws IOException {
-		if (this.len == 0) {
+		if (this.len < 0) {
+			// already at the end of the stream
+			return -1;
+		} else if (this.len == 0) {
 			int n = 0;
 			pos = 0;
 			while (n == 0) {
@@ -335,7 +463,7 @@ public class OpenPGPCipherInputStream extends OpenPGPFilterInputStream {
 			 * we could be at the end of the stream, so
 			 * we first have to test it
 			 */
-			while (inputLen < 44 && inputRes != -1) {
+			while (inputLen < 44 && inputRes != -1 && !lastPacketRead()) {
 				fillInputBuf();
 			}
 		}
@@ -348,12 +476,105 @@ public class OpenPGPCipherInputStream extends OpenPGPFilterInputStream {
 		return outBuf[pos];
 	}
 
+	/*
+	 * Skipped data is still decrypted and hashed, but never copied into a
+	 * caller's buffer. Skipping to the end is the cheapest way to verify
+	 * the modification detection code.
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+
+		if (this.len < 0) {
+			return 0;
+		} else if (this.len == 0) {
+			int r = 0;
+			pos = 0;
+			while (r == 0) {
+				r = fill();
+			}
+			if (r < 0)
+				return 0;
+		}
+
+		if (inputLen < 44) {
+			while (inputLen < 44 && inputRes != -1 && !lastPacketRead()) {
+				fillInputBuf();
+			}
+		}
+
+		if (hashChecked == false
+				&& ((partial == false && packetLen < 22) || (inputRes == -1 && inputLen < 44))) {
+			checkHash();
+		}
+
+		int l = (int) Math.min(n, (long) this.len);
+		if (hashChecked == false) {
+			hash.update(outBuf, pos, l);
+		}
+		pos += l;
+		this.len -= l;
+		return l;
+	}
+
+	/*
+	 * True if the rest of the message is already in the input buffer, so
+	 * that the stream does not block on data after the end of the message
+	 */
+	private boolean lastPacketRead() {
+		return partial == false && packetLen <= inputLen;
+	}
+
+	/*
+	 * Input that was read after the end of the message. Only valid after
+	 * the whole message was read.
+	 */
+	byte[] getRemainingInput() {
+		return Arrays.copyOfRange(buf, inputPos, inputPos + inputLen);
+	}
+
 	@Override
 	public void close() throws IOException {
-		fill();
+		if (cipher == null)
+			return;
 
-		if (len > 0 || hashChecked == false) {
-			throw new IOException("Premature close. This is a security risk!");
+		try {
+			/*
+			 * the reader may stop right after its last byte, when only the
+			 * modification detection code is left
+			 */
+			if (hashChecked == false) {
+				if (len == 0) {
+					pos = 0;
+					fill();
+				}
+				if (partial == false && packetLen + len <= 22) {
+					checkHash();
+				}
+			}
+
+			if (len > 0 || hashChecked == false) {
+				throw new IOException(
+						"Premature close. This is a security risk!");
+			}
+		} catch (IOException e) {
+			try {
+				in.close();
+			} catch (IOException e2) {
+			}
+			throw e;
+		} finally {
+			// the stream cannot be used after this
+			cipher.release();
+			cipher = null;
+			if (hash instanceof OpenPGPAsyncDigest) {
+				((OpenPGPAsyncDigest) hash).shutdown();
+			} else {
+				OpenPGPCryptoPool.releaseSHA1(hash);
+			}
+			hash = null;
 		}
 
 		in.close();
@@ -18,30 +18,48 @@
 
 package openpgp;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class OpenPGPCipherOutputStream extends OpenPGPFilterOutputStream {
-	private String pass;
 	private Cipher cipher;
 	private MessageDigest hash;
 	private SecureRandom random;
-	private byte version = 1;
-	private int ciphpos = 0;
+	// buffers still to be written for the current partial packet
+	private int chunkLeft = 0;
+
+	/*
+	 * CFB only returns whole blocks, so up to 15 bytes of plaintext are
+	 * held back by the cipher. flush() encrypts them itself with the last
+	 * ciphertext block and the key, and drops them from the next output
+	 * of the cipher.
+	 */
+	private SecretKey secret;
+	private Cipher blockCipher;
+	private byte[] feedback = new byte[16];
+	private byte[] lagBuf = new byte[16];
+	private int lag = 0;
+	private int skip = 0;
+
+	// counts the bytes written for snapshots
+	private CountingOutputStream counter;
+	private boolean armored;
 
 	public OpenPGPCipherOutputStream(OutputStream os, String password)
 			throws NoSuchAlgorithmException, IOException {
@@ -50,61 +68,244 @@ public class OpenPGPCipherOutputStream extends OpenPGPFilterOutputStream {
 
 	public OpenPGPCipherOutputStream(OutputStream os, String password,
 			int buffersize) throws NoSuchAlgorithmException, IOException {
-		super(os, buffersize);
-		random = new SecureRandom();
-		pass = password;
-		hash = MessageDigest.getInstance("SHA-1");
-		initCipher();
+		this(os, password, buffersize, false);
+	}
 
-		// create new encrypted data packet
-		out.write(0xD2);
+	/*
+	 * If sessionKey is true, a random content key is encrypted with the
+	 * password, which allows to change the password later without
+	 * reencrypting the data (see OpenPGPRekey)
+	 */
+	public OpenPGPCipherOutputStream(OutputStream os, String password,
+			int buffersize, boolean sessionKey)
+			throws NoSuchAlgorithmException, IOException {
+		this(os, password, buffersize, buffersize, sessionKey);
 	}
 
-	protected void initCipher() throws IOException, NoSuchAlgorithmException {
-		// packet header with length,version,symalgo,s2kversion,hashalgo
-		// 9 means AES256
-		// 8 means SHA256
-		byte[] b = { (byte) 0xC3, 13, 4, 9, 3, 8 };
-		out.write(b);
+	public OpenPGPCipherOutputStream(OutputStream os, String password,
+			int buffersize, int chunksize, boolean sessionKey)
+			throws NoSuchAlgorithmException, IOException {
+		this(os, new String[] { password }, buffersize, chunksize, sessionKey);
+	}
+
+	/*
+	 * Every password can decrypt the message on its own. With more than one
+	 * password a random session key is always used.
+	 */
+	public OpenPGPCipherOutputStream(OutputStream os, String[] passwords,
+			int buffersize) throws NoSuchAlgorithmException, IOException {
+		this(os, passwords, buffersize, buffersize, true);
+	}
+
+	public OpenPGPCipherOutputStream(OutputStream os, String[] passwords,
+			int buffersize, int chunksize, boolean sessionKey)
+			throws NoSuchAlgorithmException, IOException {
+		this(os, passwords, null, null, buffersize, chunksize, sessionKey);
+	}
+
+	/*
+	 * Encrypts with a 256 bit AES key instead of a password, no key
+	 * derivation takes place. If sessionKey is true, the key only encrypts
+	 * a random content key.
+	 */
+	public OpenPGPCipherOutputStream(OutputStream os, SecretKey key,
+			int buffersize) throws NoSuchAlgorithmException, IOException {
+		this(os, key, buffersize, buffersize, false);
+	}
+
+	public OpenPGPCipherOutputStream(OutputStream os, SecretKey key,
+			int buffersize, int chunksize, boolean sessionKey)
+			throws NoSuchAlgorithmException, IOException {
+		this(os, null, OpenPGPSessionKeyPacket.rawKey(key), null, buffersize,
+				chunksize, sessionKey);
+	}
 
-		byte[] salt = new byte[8];
-		random.nextBytes(salt);
+	/*
+	 * Takes a key that was derived in advance for a fresh salt, so that
+	 * the S2K does not run here unless the pool is empty
+	 */
+	public OpenPGPCipherOutputStream(OutputStream os, OpenPGPKeyPool keys,
+			int buffersize) throws NoSuchAlgorithmException, IOException {
+		this(os, keys, buffersize, buffersize, false);
+	}
+
+	public OpenPGPCipherOutputStream(OutputStream os, OpenPGPKeyPool keys,
+			int buffersize, int chunksize, boolean sessionKey)
+			throws NoSuchAlgorithmException, IOException {
+		this(os, null, null, keys.take(), buffersize, chunksize, sessionKey);
+	}
+
+	/*
+	 * Takes an S2K output that the caller derived for a fresh salt, see
+	 * OpenPGPPushEncoder
+	 */
+	OpenPGPCipherOutputStream(OutputStream os, OpenPGPKeyPool.Entry entry,
+			int buffersize, int chunksize, boolean sessionKey)
+			throws NoSuchAlgorithmException, IOException {
+		this(os, null, null, entry, buffersize, chunksize, sessionKey);
+	}
 
-		out.write(salt);
+	private OpenPGPCipherOutputStream(OutputStream os, String[] passwords,
+			byte[] kek, OpenPGPKeyPool.Entry entry, int buffersize,
+			int chunksize, boolean sessionKey)
+			throws NoSuchAlgorithmException, IOException {
+		super(os, buffersize, chunksize);
+		if (kek == null && entry == null && passwords.length == 0) {
+			throw new IllegalArgumentException("No password given");
+		}
+		armored = os instanceof OpenPGPArmorOutputStream;
+		out = counter = new CountingOutputStream(os, 0);
+		random = OpenPGPCryptoPool.getRandom();
+		hash = OpenPGPCryptoPool.getSHA1();
 
 		/*
-		 * #define EXPBIAS 6 count = ((Int32)16 + (c & 15)) << ((c >> 4) +
-		 * EXPBIAS);
-		 *
-		 * precomputed: c=0x9F .... count=1015808
+		 * the version byte is the first byte of the packet. The cipher may
+		 * return up to 15 bytes more than it was given, plus the 20 bytes
+		 * of the hash at the end.
 		 */
-		out.write(0x9F);
-		int count = 1015808;
-		byte[] pw = pass.getBytes("UTF-8");
-		int len = pw.length + 8;
+		buf = new byte[BUFFERSIZE + 64];
+		buf[0] = 1;
+		pos = 1;
 
-		MessageDigest md = MessageDigest.getInstance("SHA-256");
-		while (count > len) {
-			md.update(salt, 0, 8);
-			md.update(pw);
-			count -= len;
+		byte[] key = null;
+		if (sessionKey || (passwords != null && passwords.length > 1)) {
+			key = new byte[32];
+			random.nextBytes(key);
 		}
-
-		if (count < 8) {
-			md.update(salt, 0, count);
+		if (kek != null) {
+			OpenPGPSessionKeyPacket p = OpenPGPSessionKeyPacket.create(kek,
+					key);
+			Arrays.fill(kek, (byte) 0);
+			p.write(out);
+			key = p.getKey();
+		} else if (entry != null) {
+			OpenPGPSessionKeyPacket p = OpenPGPSessionKeyPacket.create(
+					entry.salt, entry.codedCount, entry.key, key);
+			p.write(out);
+			key = p.getKey();
 		} else {
-			md.update(salt, 0, 8);
-			count -= 8;
-			md.update(pw, 0, count);
+			for (String password : passwords) {
+				byte[] pw = password.getBytes("UTF-8");
+				OpenPGPSessionKeyPacket p;
+				try {
+					p = OpenPGPSessionKeyPacket.create(pw, key, random);
+				} finally {
+					Arrays.fill(pw, (byte) 0);
+				}
+				p.write(out);
+				key = p.getKey();
+			}
 		}
+		initCipher(key);
+		Arrays.fill(key, (byte) 0);
 
-		SecretKey secret = new SecretKeySpec(md.digest(), "AES");
+		// create new encrypted data packet
+		out.write(0xD2);
+	}
+
+	/*
+	 * Continues a message from a snapshot. os has to continue the
+	 * original output at snap.getOffset().
+	 */
+	public OpenPGPCipherOutputStream(OutputStream os, OpenPGPSnapshot snap)
+			throws NoSuchAlgorithmException, IOException {
+		super(os, snap);
+		if (snap.layer != OpenPGPSnapshot.Layer.CIPHER) {
+			throw new IllegalArgumentException(
+					"Not a snapshot of an encryption");
+		}
+		armored = os instanceof OpenPGPArmorOutputStream;
+		out = counter = new CountingOutputStream(os, snap.offset);
+		random = OpenPGPCryptoPool.getRandom();
+		hash = cloneHash(snap.hash);
+
+		chunkLeft = snap.chunkLeft;
+		System.arraycopy(snap.feedback, 0, feedback, 0, 16);
+		System.arraycopy(snap.lagBuf, 0, lagBuf, 0, 16);
+		lag = snap.lag;
+		skip = snap.skip;
+
+		/*
+		 * the last ciphertext block is the IV of the rest of the message,
+		 * and the cipher holds back the same plaintext as before
+		 */
+		secret = new SecretKeySpec(snap.key, "AES");
+		cipher = OpenPGPCryptoPool.getCipher();
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(
+					feedback));
+			if (cipher.update(lagBuf, 0, lag, new byte[16], 0) != 0) {
+				throw new IOException("Invalid snapshot");
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+	}
 
+	static MessageDigest cloneHash(MessageDigest md) throws IOException {
 		try {
-			cipher = Cipher.getInstance("AES/CFB128/NoPadding");
-		} catch (NoSuchPaddingException e) {
-			// nopadding always exists
+			return (MessageDigest) md.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IOException("Hash cannot be copied", e);
+		}
+	}
+
+	/*
+	 * Everything up to the offset of the snapshot is flushed to the
+	 * output. The encryption writes the same data with or without
+	 * snapshots.
+	 */
+	@Override
+	public OpenPGPSnapshot snapshot() throws IOException {
+		if (cipher == null) {
+			throw new IOException("Stream closed");
 		}
+		if (armored) {
+			throw new IOException("Armored streams do not support snapshots");
+		}
+		out.flush();
+
+		OpenPGPSnapshot snap = save(OpenPGPSnapshot.Layer.CIPHER);
+		snap.hash = cloneHash(hash);
+		snap.key = secret.getEncoded();
+		snap.offset = counter.count;
+		snap.chunkLeft = chunkLeft;
+		snap.feedback = feedback.clone();
+		snap.lagBuf = lagBuf.clone();
+		snap.lag = lag;
+		snap.skip = skip;
+		return snap;
+	}
+
+	/*
+	 * Size of the whole output for a plaintext of len bytes, if it is
+	 * written with chunks of buffersize. The cipher returns whole blocks
+	 * only, so it holds back (len + 20) % 16 bytes of the prefix, the data
+	 * and the MDC header until the end.
+	 */
+	static long encryptedLength(long len, int buffersize, boolean sessionKey) {
+		int bufsize = 1 << bufferPower(buffersize);
+
+		long res = 2 + 13;
+		if (sessionKey) {
+			res += OpenPGPSessionKeyPacket.ENCRYPTED_KEY_LENGTH;
+		}
+
+		// version, prefix, data and MDC
+		long body = 1 + 18 + len + 22;
+		long buffered = 1 + 18 + len + 2 - (18 + len + 2) % 16;
+		long chunks = buffered / bufsize;
+
+		res += 1 + chunks + encodeLength((int) (body - chunks * bufsize)).length
+				+ body;
+		return res;
+	}
+
+	protected void initCipher(byte[] key) throws IOException,
+			NoSuchAlgorithmException {
+		secret = new SecretKeySpec(key, "AES");
+
+		cipher = OpenPGPCryptoPool.getCipher();
 
 		// iv is initialized to all 0x00 by default
 		byte[] iv = new byte[16];
@@ -128,35 +329,132 @@ public class OpenPGPCipherOutputStream extends OpenPGPFilterOutputStream {
 		ivrep[bs + 1] = ivrep[bs - 1];
 
 		hash.update(ivrep, 0, bs + 2);
+		encrypt(ivrep, 0, bs + 2, false);
+	}
+
+	/*
+	 * Encrypts into buf at pos and keeps track of the bytes held back by
+	 * the cipher. There must be at least len + 15 bytes space in buf.
+	 */
+	private void encrypt(byte[] b, int off, int len, boolean last)
+			throws IOException {
+		int n;
 		try {
-			pos = cipher.update(ivrep, 0, bs + 2, buf);
-		} catch (ShortBufferException e) {
+			if (last) {
+				n = cipher.doFinal(b, off, len, buf, pos);
+			} else {
+				n = cipher.update(b, off, len, buf, pos);
+			}
+		} catch (ShortBufferException | IllegalBlockSizeException
+				| BadPaddingException e) {
+			throw new IOException(e);
 		}
-		ciphpos = bs + 2;
+
+		// remember the plaintext the cipher still holds
+		int keep = lag + len - n;
+		if (keep > 0 && !last) {
+			if (len >= keep) {
+				System.arraycopy(b, off + len - keep, lagBuf, 0, keep);
+			} else {
+				System.arraycopy(lagBuf, lag - (keep - len), lagBuf, 0, keep
+						- len);
+				System.arraycopy(b, off, lagBuf, keep - len, len);
+			}
+		}
+		lag = keep;
+
+		if (n >= 16) {
+			System.arraycopy(buf, pos + n - 16, feedback, 0, 16);
+		}
+		if (n > 0 && skip > 0) {
+			// these bytes were already written by flush()
+			System.arraycopy(buf, pos + skip, buf, pos, n - skip);
+			n -= skip;
+			skip = 0;
+		}
+		pos += n;
 	}
 
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
 		hash.update(b, off, len);
 		while (len > 0) {
-			int tlen = Math.min(len, BUFFERSIZE - ciphpos);
-			try {
-				pos += cipher.update(b, off, tlen, buf, pos);
-			} catch (ShortBufferException e) {
-			}
-			ciphpos += tlen;
+			int tlen = Math.min(len, BUFFERSIZE - pos);
+			encrypt(b, off, tlen, false);
 			len -= tlen;
 			off += tlen;
 
-			if (pos == BUFFERSIZE) {
-				out.write(PARTIAL_BUFFERSIZE);
-				out.write(version);
-				out.write(buf, 0, BUFFERSIZE - 1);
-				version = buf[BUFFERSIZE - 1];
+			if (pos >= BUFFERSIZE) {
+				flushBuffer(len);
+			}
+		}
+	}
+
+	/*
+	 * Writes out a full buffer. A new partial packet is only started if the
+	 * previous one is complete. Its size is chosen, so that it is filled up
+	 * by the pending input of the current write call. The cipher may hold
+	 * back up to 15 bytes of it.
+	 */
+	private void flushBuffer(int pending) throws IOException {
+		if (chunkLeft == 0) {
+			long rest = Math.max(0, pending - 15);
+			int power = chunkPower(BUFFERSIZE + rest - rest % BUFFERSIZE);
+			out.write(224 + power);
+			chunkLeft = 1 << (power - BUFFERPOWER);
+			started = true;
+		}
+
+		out.write(buf, 0, BUFFERSIZE);
+		pos -= BUFFERSIZE;
+		if (pos > 0) {
+			System.arraycopy(buf, BUFFERSIZE, buf, 0, pos);
+		}
+		chunkLeft--;
+		if (chunkLeft == 0 && progress != null) {
+			progress.packets++;
+		}
+	}
+
+	/*
+	 * In flush mode everything written so far is sent, including the bytes
+	 * held back by the cipher
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (flushMode && cipher != null) {
+			int tail = lag - skip;
+			int total = pos + tail;
+			if (total > 0 && (started || total >= 512)) {
+				if (tail > 0) {
+					encryptTail();
+				}
+				if (progress != null) {
+					progress.packets += Integer.bitCount(pos);
+				}
+				writePartial(buf, 0, pos);
 				pos = 0;
-				ciphpos = 0;
 			}
 		}
+		out.flush();
+	}
+
+	private void encryptTail() throws IOException {
+		byte[] ks;
+		try {
+			if (blockCipher == null) {
+				blockCipher = OpenPGPCryptoPool.getBlockCipher();
+				blockCipher.init(Cipher.ENCRYPT_MODE, secret);
+			}
+			ks = blockCipher.doFinal(feedback);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+
+		for (int i = skip; i < lag; i++) {
+			buf[pos++] = (byte) (lagBuf[i] ^ ks[i]);
+		}
+		skip = lag;
 	}
 
 	private void finish() throws IOException {
@@ -164,56 +462,80 @@ public class OpenPGPCipherOutputStream extends OpenPGPFilterOutputStream {
 		write(0x14);
 		byte[] md = hash.digest();
 
-		if (BUFFERSIZE - ciphpos >= md.length) {
-			// enough space in buffer for the hash
-			try {
-				pos += cipher.doFinal(md, 0, md.length, buf, pos);
-			} catch (ShortBufferException | IllegalBlockSizeException
-					| BadPaddingException e) {
-			}
-		} else {
-			// not enough space in buffer for the hash
-			int len = md.length;
-			int off = 0;
-
-			int tlen = BUFFERSIZE - ciphpos;
-			try {
-				pos += cipher.update(md, off, tlen, buf, pos);
-			} catch (ShortBufferException e) {
-			}
-			ciphpos += tlen;
-			len -= tlen;
-			off += tlen;
-
-			out.write(PARTIAL_BUFFERSIZE);
-			out.write(version);
-			out.write(buf, 0, BUFFERSIZE - 1);
-			version = buf[BUFFERSIZE - 1];
-			pos = 0;
-			ciphpos = 0;
-
-			// write out the rest
-			try {
-				pos += cipher.doFinal(md, off, len, buf, pos);
-			} catch (ShortBufferException | IllegalBlockSizeException
-					| BadPaddingException e) {
-			}
-		}
+		// pos is smaller than BUFFERSIZE, so there is enough space left
+		encrypt(md, 0, md.length, true);
 	}
 
 	@Override
 	public void close() throws IOException {
-		finish();
+		if (cipher == null)
+			return;
+
+		if (progress != null) {
+			progress.setPhase(OpenPGPProgressListener.Phase.MDC_CHECK);
+		}
+		try {
+			finish();
+		} finally {
+			// the stream cannot be used after this
+			OpenPGPCryptoPool.release(cipher);
+			OpenPGPCryptoPool.releaseSHA1(hash);
+			cipher = null;
+			hash = null;
+			OpenPGPCryptoPool.releaseBlockCipher(blockCipher);
+			blockCipher = null;
+			secret = null;
+		}
 
 		// write out whats left in the buffer
-		byte[] b = encodeLength(pos + 1);
+		byte[] b = encodeLength(pos);
 		out.write(b);
-		out.write(version);
 
 		if (pos > 0) {
 			out.write(buf, 0, pos);
 		}
+		if (progress != null) {
+			progress.packets++;
+		}
 
 		out.close();
 	}
+
+	@Override
+	void setProgress(OpenPGPProgress progress) {
+		super.setProgress(progress);
+		counter.progress = progress;
+		if (progress != null) {
+			// a fan-out shares the progress between several outputs
+			progress.ciphertext += counter.count;
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count;
+		OpenPGPProgress progress;
+
+		CountingOutputStream(OutputStream out, long count) {
+			super(out);
+			this.count = count;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+			if (progress != null) {
+				progress.ciphertext++;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+			if (progress != null) {
+				progress.ciphertext += len;
+			}
+		}
+	}
 }
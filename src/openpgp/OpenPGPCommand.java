@@ -0,0 +1,348 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Command line tool to encrypt, decrypt or verify files and directory
+ * trees with a pool of worker threads.
+ *
+ * java openpgp.OpenPGPCommand encrypt|decrypt|verify [options] path...
+ * java openpgp.OpenPGPCommand bench [options]
+ */
+public class OpenPGPCommand {
+	private static final String SUFFIX = ".pgp";
+
+	private String mode;
+	private String password;
+	private OpenPGPCompression compression = OpenPGPCompression.ZLIB;
+	private int bufsize = 64 * 1024;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private boolean sessionKey = false;
+	private boolean force = false;
+	private List<Path> files = new ArrayList<Path>();
+
+	private static class Result {
+		Path file;
+		long bytes;
+		long nanos;
+		String error;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("bench")) {
+			String[] rest = new String[args.length - 1];
+			System.arraycopy(args, 1, rest, 0, rest.length);
+			OpenPGPBenchmark.main(rest);
+			return;
+		}
+
+		OpenPGPCommand cmd = new OpenPGPCommand();
+		try {
+			cmd.parseArgs(args);
+		} catch (IllegalArgumentException | IOException e) {
+			System.err.println(e.getMessage());
+			usage();
+			System.exit(2);
+		}
+		System.exit(cmd.run());
+	}
+
+	private static void usage() {
+		System.err.println("Usage: java openpgp.OpenPGPCommand encrypt|decrypt|verify [options] path...");
+		System.err.println("       java openpgp.OpenPGPCommand bench [-b N] [-c ALGO] [-s MB] [-i N] [-n] [-z]");
+		System.err.println("  -p env:NAME   read the password from an environment variable");
+		System.err.println("  -p fd:N       read the password from file descriptor N");
+		System.err.println("  -p file:PATH  read the password from a file");
+		System.err.println("  -t N          number of worker threads");
+		System.err.println("  -b N          buffer size in bytes");
+		System.err.println("  -c ALGO       compression: none, zip, zlib, bzip2, lz4 or zstd");
+		System.err.println("  -k            encrypt with a random session key");
+		System.err.println("  -f            overwrite existing output files");
+		System.err.println("  -x            allow the private algorithms lz4 and zstd");
+	}
+
+	private void parseArgs(String[] args) throws IOException {
+		if (args.length < 1) {
+			throw new IllegalArgumentException("No command given");
+		}
+		mode = args[0];
+		if (!mode.equals("encrypt") && !mode.equals("decrypt")
+				&& !mode.equals("verify")) {
+			throw new IllegalArgumentException("Unknown command: " + mode);
+		}
+
+		String pwSource = null;
+		for (int i = 1; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("-p") && i + 1 < args.length) {
+				pwSource = args[++i];
+			} else if (a.equals("-t") && i + 1 < args.length) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (a.equals("-b") && i + 1 < args.length) {
+				bufsize = Integer.parseInt(args[++i]);
+			} else if (a.equals("-c") && i + 1 < args.length) {
+				compression = OpenPGPCompression.valueOf(args[++i]
+						.toUpperCase(Locale.ROOT));
+			} else if (a.equals("-k")) {
+				sessionKey = true;
+			} else if (a.equals("-f")) {
+				force = true;
+			} else if (a.equals("-x")) {
+				OpenPGPCompressionCodecs.setEnabled(OpenPGPCompression.LZ4, true);
+				OpenPGPCompressionCodecs.setEnabled(OpenPGPCompression.ZSTD, true);
+			} else if (a.startsWith("-")) {
+				throw new IllegalArgumentException("Unknown option: " + a);
+			} else {
+				collectFiles(Paths.get(a));
+			}
+		}
+
+		if (files.isEmpty()) {
+			throw new IllegalArgumentException("No input files");
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("Invalid number of threads");
+		}
+
+		password = readPassword(pwSource);
+	}
+
+	private void collectFiles(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) {
+				if (!attrs.isRegularFile())
+					return FileVisitResult.CONTINUE;
+
+				boolean encrypted = file.getFileName().toString()
+						.endsWith(SUFFIX);
+				if (encrypted != mode.equals("encrypt")) {
+					files.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static String readPassword(String source) throws IOException {
+		if (source == null) {
+			Console console = System.console();
+			if (console == null) {
+				throw new IllegalArgumentException("No password given");
+			}
+			return new String(console.readPassword("Password: "));
+		}
+
+		if (source.startsWith("env:")) {
+			String pw = System.getenv(source.substring(4));
+			if (pw == null) {
+				throw new IllegalArgumentException("Environment variable "
+						+ source.substring(4) + " not set");
+			}
+			return pw;
+		}
+
+		InputStream is;
+		if (source.equals("fd:0")) {
+			is = System.in;
+		} else if (source.startsWith("fd:")) {
+			is = Files.newInputStream(Paths.get("/dev/fd/"
+					+ Integer.parseInt(source.substring(3))));
+		} else if (source.startsWith("file:")) {
+			is = Files.newInputStream(Paths.get(source.substring(5)));
+		} else {
+			throw new IllegalArgumentException("Unknown password source: "
+					+ source);
+		}
+
+		// only the first line is used
+		BufferedReader r = new BufferedReader(new InputStreamReader(is,
+				"UTF-8"));
+		String pw = r.readLine();
+		if (pw == null) {
+			throw new IllegalArgumentException("Empty password");
+		}
+		return pw;
+	}
+
+	private int run() {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		long start = System.nanoTime();
+
+		for (final Path file : files) {
+			futures.add(pool.submit(new Callable<Result>() {
+				@Override
+				public Result call() {
+					return process(file);
+				}
+			}));
+		}
+
+		long total = 0;
+		int errors = 0;
+		for (Future<Result> f : futures) {
+			Result r;
+			try {
+				r = f.get();
+			} catch (InterruptedException | ExecutionException e) {
+				errors++;
+				System.err.println(e.getMessage());
+				continue;
+			}
+
+			if (r.error != null) {
+				errors++;
+				System.out.println(r.file + ": " + r.error);
+			} else {
+				total += r.bytes;
+				System.out.println(r.file + ": " + format(r.bytes, r.nanos));
+			}
+		}
+		pool.shutdown();
+
+		System.out.println("Total: " + files.size() + " files, " + errors
+				+ " errors, " + format(total, System.nanoTime() - start));
+		return errors == 0 ? 0 : 1;
+	}
+
+	private static String format(long bytes, long nanos) {
+		double mb = bytes / (1024.0 * 1024.0);
+		double s = nanos / 1e9;
+		return String.format(Locale.ROOT, "%.1f MB in %.3f s (%.1f MB/s)",
+				mb, s, s > 0 ? mb / s : 0.0);
+	}
+
+	/*
+	 * The byte count is the size of the encrypted file. The output is
+	 * written to a temporary file next to the target, which replaces the
+	 * target only when it is complete, so a failure never touches a file
+	 * that existed before.
+	 */
+	private Result process(Path file) {
+		Result r = new Result();
+		r.file = file;
+		long start = System.nanoTime();
+		Path tmp = null;
+
+		try {
+			if (mode.equals("verify")) {
+				OpenPGPVerifyResult v = OpenPGPVerifier.verify(file, password,
+						bufsize);
+				if (!v.isOk()) {
+					r.error = v.getStatus() + ": " + v.getException().getMessage();
+				}
+				r.bytes = v.getCiphertextBytes();
+			} else if (mode.equals("encrypt")) {
+				Path target = file.resolveSibling(file.getFileName() + SUFFIX);
+				checkTarget(target);
+				tmp = createTemp(target);
+				OpenPGPOptions options = new OpenPGPOptions(password)
+						.setCompression(compression).setBufferSize(bufsize)
+						.setSessionKey(sessionKey);
+				try (InputStream is = Files.newInputStream(file);
+						OutputStream fos = Files.newOutputStream(tmp);
+						OutputStream os = OpenPGPFactory.getOutputStream(fos,
+								options)) {
+					copy(is, os);
+				}
+				r.bytes = Files.size(tmp);
+				moveTemp(tmp, target);
+			} else {
+				String name = file.getFileName().toString();
+				Path target = file.resolveSibling(name.substring(0,
+						name.length() - SUFFIX.length()));
+				checkTarget(target);
+				tmp = createTemp(target);
+				try (InputStream fis = Files.newInputStream(file);
+						InputStream is = OpenPGPFactory.getInputStream(fis,
+								password, bufsize);
+						OutputStream os = Files.newOutputStream(tmp)) {
+					copy(is, os);
+				}
+				moveTemp(tmp, target);
+				r.bytes = Files.size(file);
+			}
+		} catch (Exception e) {
+			r.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+		} finally {
+			// never leave unauthenticated or incomplete output behind
+			if (tmp != null) {
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (IOException e2) {
+				}
+			}
+		}
+
+		r.nanos = System.nanoTime() - start;
+		return r;
+	}
+
+	private void checkTarget(Path target) throws IOException {
+		if (!force && Files.exists(target)) {
+			throw new FileAlreadyExistsException(target.toString(), null,
+					"use -f to overwrite");
+		}
+	}
+
+	private static Path createTemp(Path target) throws IOException {
+		return Files.createTempFile(target.toAbsolutePath().getParent(), "."
+				+ target.getFileName(), ".tmp");
+	}
+
+	private void moveTemp(Path tmp, Path target) throws IOException {
+		// the target may have appeared while the file was processed
+		checkTarget(target);
+		Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void copy(InputStream is, OutputStream os) throws IOException {
+		byte[] b = new byte[bufsize];
+		int n;
+		while ((n = is.read(b)) != -1) {
+			os.write(b, 0, n);
+		}
+	}
+}
@@ -18,6 +18,43 @@
 
 package openpgp;
 
+import java.io.IOException;
+
 public enum OpenPGPCompression {
-	NONE, ZIP, ZLIB, BZIP2
+	NONE(0), ZIP(1), ZLIB(2), BZIP2(3), LZ4(100), ZSTD(101);
+
+	/*
+	 * ID           Algorithm
+	 * --           ---------
+	 * 0          - Uncompressed
+	 * 1          - ZIP [RFC1951]
+	 * 2          - ZLIB [RFC1950]
+	 * 3          - BZip2 [BZ2]
+	 * 100 to 110 - Private/Experimental algorithm
+	 *
+	 * LZ4 (frame format) and Zstandard use private IDs, other
+	 * implementations cannot read them. They have to be enabled with
+	 * OpenPGPCompressionCodecs.setEnabled().
+	 */
+	private final int id;
+
+	private OpenPGPCompression(int id) {
+		this.id = id;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public boolean isPrivate() {
+		return id >= 100 && id <= 110;
+	}
+
+	public static OpenPGPCompression fromId(int id) throws IOException {
+		for (OpenPGPCompression c : values()) {
+			if (c.id == id)
+				return c;
+		}
+		throw new IOException("Unsupported compression algorithm");
+	}
 }
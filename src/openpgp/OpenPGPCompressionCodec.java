@@ -0,0 +1,43 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * Service provider interface for compression algorithms. Implementations
+ * are found with java.util.ServiceLoader through
+ * META-INF/services/openpgp.OpenPGPCompressionCodec and take precedence over
+ * the built-in ones. They are looked up only once, so creating the streams
+ * should be cheap.
+ *
+ * If syncFlush is true, flush() of the output stream should write out all
+ * the data compressed so far, if the algorithm allows it.
+ */
+public interface OpenPGPCompressionCodec {
+	OpenPGPCompression getCompression();
+
+	InputStream getInputStream(InputStream in, int bufsize)
+			throws IOException;
+
+	OutputStream getOutputStream(OutputStream out, int bufsize,
+			boolean syncFlush) throws IOException;
+}
@@ -0,0 +1,434 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Registry of the compression codecs. The built-in codecs and the ones
+ * found by the ServiceLoader are resolved once on first use.
+ */
+public class OpenPGPCompressionCodecs {
+	private static final String BZIP2_INPUT_CLASS = "org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream";
+	private static final String BZIP2_OUTPUT_CLASS = "org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream";
+	// lz4-java and zstd-jni, both are optional
+	private static final String LZ4_INPUT_CLASS = "net.jpountz.lz4.LZ4FrameInputStream";
+	private static final String LZ4_OUTPUT_CLASS = "net.jpountz.lz4.LZ4FrameOutputStream";
+	private static final String ZSTD_INPUT_CLASS = "com.github.luben.zstd.ZstdInputStream";
+	private static final String ZSTD_OUTPUT_CLASS = "com.github.luben.zstd.ZstdOutputStream";
+
+	private static volatile Map<OpenPGPCompression, OpenPGPCompressionCodec> codecs = load();
+
+	// private algorithms that may be read and written
+	private static volatile Set<OpenPGPCompression> enabled = EnumSet
+			.noneOf(OpenPGPCompression.class);
+
+	private static Map<OpenPGPCompression, OpenPGPCompressionCodec> load() {
+		Map<OpenPGPCompression, OpenPGPCompressionCodec> m = new EnumMap<OpenPGPCompression, OpenPGPCompressionCodec>(
+				OpenPGPCompression.class);
+
+		m.put(OpenPGPCompression.NONE, new NoneCodec());
+		m.put(OpenPGPCompression.ZIP, new DeflateCodec(
+				OpenPGPCompression.ZIP, true));
+		m.put(OpenPGPCompression.ZLIB, new DeflateCodec(
+				OpenPGPCompression.ZLIB, false));
+		m.put(OpenPGPCompression.BZIP2, new BZip2Codec());
+		m.put(OpenPGPCompression.LZ4, new LZ4Codec());
+		m.put(OpenPGPCompression.ZSTD, new ReflectiveCodec(
+				OpenPGPCompression.ZSTD, "zstd-jni", ZSTD_INPUT_CLASS,
+				ZSTD_OUTPUT_CLASS));
+
+		for (OpenPGPCompressionCodec c : ServiceLoader.load(
+				OpenPGPCompressionCodec.class,
+				OpenPGPCompressionCodec.class.getClassLoader())) {
+			m.put(c.getCompression(), c);
+		}
+
+		return m;
+	}
+
+	public static OpenPGPCompressionCodec get(OpenPGPCompression compression)
+			throws IOException {
+		checkEnabled(compression);
+		OpenPGPCompressionCodec c = codecs.get(compression);
+		if (c == null) {
+			throw new IOException("Unsupported compression algorithm");
+		}
+		return c;
+	}
+
+	/*
+	 * The private algorithms are refused unless they are enabled, because
+	 * other OpenPGP implementations cannot read them
+	 */
+	public static synchronized void setEnabled(OpenPGPCompression compression,
+			boolean on) {
+		if (!compression.isPrivate())
+			return;
+		Set<OpenPGPCompression> s = EnumSet.noneOf(OpenPGPCompression.class);
+		s.addAll(enabled);
+		if (on) {
+			s.add(compression);
+		} else {
+			s.remove(compression);
+		}
+		enabled = s;
+	}
+
+	public static boolean isEnabled(OpenPGPCompression compression) {
+		return !compression.isPrivate() || enabled.contains(compression);
+	}
+
+	static void checkEnabled(OpenPGPCompression compression)
+			throws IOException {
+		if (!isEnabled(compression)) {
+			throw new IOException("Private compression algorithm "
+					+ compression + " (" + compression.getId()
+					+ ") is not enabled");
+		}
+	}
+
+	/*
+	 * Replaces the codec for its algorithm
+	 */
+	public static synchronized void register(OpenPGPCompressionCodec codec) {
+		Map<OpenPGPCompression, OpenPGPCompressionCodec> m = new EnumMap<OpenPGPCompression, OpenPGPCompressionCodec>(
+				codecs);
+		m.put(codec.getCompression(), codec);
+		codecs = m;
+	}
+
+	private static class NoneCodec implements OpenPGPCompressionCodec {
+		@Override
+		public OpenPGPCompression getCompression() {
+			return OpenPGPCompression.NONE;
+		}
+
+		@Override
+		public InputStream getInputStream(InputStream in, int bufsize) {
+			return in;
+		}
+
+		@Override
+		public OutputStream getOutputStream(OutputStream out, int bufsize,
+				boolean syncFlush) {
+			return out;
+		}
+	}
+
+	/*
+	 * The streams do not free the native memory of an Inflater that was
+	 * passed in, so it is done on close
+	 */
+	private static class DeflateCodec implements OpenPGPCompressionCodec {
+		private final OpenPGPCompression compression;
+		private final boolean nowrap;
+
+		DeflateCodec(OpenPGPCompression compression, boolean nowrap) {
+			this.compression = compression;
+			this.nowrap = nowrap;
+		}
+
+		@Override
+		public OpenPGPCompression getCompression() {
+			return compression;
+		}
+
+		@Override
+		public InputStream getInputStream(InputStream in, int bufsize) {
+			final Inflater inf = new Inflater(nowrap);
+			return new InflaterInputStream(in, inf, bufsize) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inf.end();
+					}
+				}
+			};
+		}
+
+		@Override
+		public OutputStream getOutputStream(OutputStream out, int bufsize,
+				boolean syncFlush) {
+			return new DeflateOutputStream(out, bufsize, syncFlush,
+					compression, new Deflater(Deflater.BEST_COMPRESSION,
+							nowrap), null, 1);
+		}
+	}
+
+	/*
+	 * Continues a deflate stream after the full flush of a snapshot with a
+	 * new raw deflater. adler is the ZLIB checksum of the data before.
+	 */
+	static OutputStream resumeDeflate(OutputStream out, int bufsize,
+			boolean syncFlush, OpenPGPCompression compression, int adler) {
+		return new DeflateOutputStream(out, bufsize, syncFlush, compression,
+				new Deflater(Deflater.BEST_COMPRESSION, true),
+				compression == OpenPGPCompression.ZLIB ? new Adler32()
+						: null, adler);
+	}
+
+	/*
+	 * Output of the built-in ZIP and ZLIB codecs, which can be cut by a
+	 * full flush, see OpenPGPSnapshot
+	 */
+	static class DeflateOutputStream extends DeflaterOutputStream {
+		private final OpenPGPCompression compression;
+
+		// only for a resumed ZLIB stream, which writes the trailer itself
+		private final Adler32 resumed;
+		private final int adlerBefore;
+		private long count = 0;
+
+		DeflateOutputStream(OutputStream out, int bufsize, boolean syncFlush,
+				OpenPGPCompression compression, Deflater def, Adler32 resumed,
+				int adlerBefore) {
+			super(out, def, bufsize, syncFlush);
+			this.compression = compression;
+			this.resumed = resumed;
+			this.adlerBefore = adlerBefore;
+		}
+
+		OpenPGPCompression getCompression() {
+			return compression;
+		}
+
+		OutputStream getTarget() {
+			return out;
+		}
+
+		// ZLIB checksum of all the data written so far
+		int getAdler() {
+			if (resumed == null) {
+				return def.getAdler();
+			}
+			return combineAdler(adlerBefore, (int) resumed.getValue(), count);
+		}
+
+		/*
+		 * Writes out everything and resets the dictionary, so that a new
+		 * deflater can continue from here
+		 */
+		void fullFlush() throws IOException {
+			if (def.finished()) {
+				throw new IOException("Stream finished");
+			}
+			int len;
+			while ((len = def.deflate(buf, 0, buf.length, Deflater.FULL_FLUSH)) > 0) {
+				out.write(buf, 0, len);
+				if (len < buf.length)
+					break;
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			super.write(b, off, len);
+			if (resumed != null) {
+				resumed.update(b, off, len);
+				count += len;
+			}
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (def.finished())
+				return;
+			super.finish();
+			if (resumed != null) {
+				int a = getAdler();
+				out.write(new byte[] { (byte) (a >>> 24), (byte) (a >>> 16),
+						(byte) (a >>> 8), (byte) a });
+			}
+		}
+
+		/*
+		 * The streams do not free the native memory of a Deflater that was
+		 * passed in
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				def.end();
+			}
+		}
+	}
+
+	/*
+	 * Adler-32 of two pieces of data from their checksums, as in zlib
+	 */
+	static int combineAdler(int adler1, int adler2, long len2) {
+		final int base = 65521;
+		long rem = len2 % base;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = rem * sum1 % base;
+		sum1 += (adler2 & 0xFFFF) + base - 1;
+		sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base
+				- rem;
+		if (sum1 >= base)
+			sum1 -= base;
+		if (sum1 >= base)
+			sum1 -= base;
+		if (sum2 >= base << 1)
+			sum2 -= base << 1;
+		if (sum2 >= base)
+			sum2 -= base;
+		return (int) (sum1 | sum2 << 16);
+	}
+
+	/*
+	 * Uses a library, like apache commons compress, if it is on the
+	 * classpath. The streams are created with their constructor that takes
+	 * only the underlying stream.
+	 */
+	private static class ReflectiveCodec implements OpenPGPCompressionCodec {
+		private final OpenPGPCompression compression;
+		private final String library;
+		private final Constructor<?> inputCtor;
+		protected Constructor<?> outputCtor;
+
+		ReflectiveCodec(OpenPGPCompression compression, String library,
+				String inputClass, String outputClass) {
+			this.compression = compression;
+			this.library = library;
+			inputCtor = findConstructor(inputClass, InputStream.class);
+			outputCtor = findConstructor(outputClass, OutputStream.class);
+		}
+
+		static Constructor<?> findConstructor(String name, Class<?>... params) {
+			try {
+				return Class.forName(name).getConstructor(params);
+			} catch (ClassNotFoundException | NoSuchMethodException
+					| LinkageError e) {
+				return null;
+			}
+		}
+
+		Object create(Constructor<?> ctor, Object... args) throws IOException {
+			if (ctor == null) {
+				throw new IOException("Unable to load " + library + " class");
+			}
+
+			try {
+				return ctor.newInstance(args);
+			} catch (InvocationTargetException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException(e.getCause());
+			} catch (ReflectiveOperationException e) {
+				throw new IOException("Unable to load " + library + " class");
+			}
+		}
+
+		@Override
+		public OpenPGPCompression getCompression() {
+			return compression;
+		}
+
+		@Override
+		public InputStream getInputStream(InputStream in, int bufsize)
+				throws IOException {
+			return (InputStream) create(inputCtor, in);
+		}
+
+		@Override
+		public OutputStream getOutputStream(OutputStream out, int bufsize,
+				boolean syncFlush) throws IOException {
+			// flush() of the stream decides what syncFlush can do
+			return (OutputStream) create(outputCtor, out);
+		}
+	}
+
+	private static class BZip2Codec extends ReflectiveCodec {
+		BZip2Codec() {
+			super(OpenPGPCompression.BZIP2, "apache commons bzip2",
+					BZIP2_INPUT_CLASS, BZIP2_OUTPUT_CLASS);
+		}
+
+		/*
+		 * The header "BZh1" to "BZh9" gives the block size, which decides
+		 * how much memory the decompressor allocates
+		 */
+		@Override
+		public InputStream getInputStream(InputStream in, int bufsize)
+				throws IOException {
+			if (OpenPGPDecompressionLimits.getMaxBZip2Memory() > 0) {
+				PushbackInputStream p = new PushbackInputStream(in, 4);
+				byte[] h = new byte[4];
+				int n = 0;
+				int r;
+				while (n < 4 && (r = p.read(h, n, 4 - n)) != -1) {
+					n += r;
+				}
+				if (n == 4 && h[0] == 'B' && h[1] == 'Z' && h[2] == 'h') {
+					OpenPGPDecompressionLimits.checkBZip2Level(h[3] - '0');
+				}
+				p.unread(h, 0, n);
+				in = p;
+			}
+			return super.getInputStream(in, bufsize);
+		}
+	}
+
+	/*
+	 * The LZ4 frame format with 64K blocks, the default of 4M blocks would
+	 * need that much memory for every stream
+	 */
+	private static class LZ4Codec extends ReflectiveCodec {
+		private Object blockSize;
+
+		LZ4Codec() {
+			super(OpenPGPCompression.LZ4, "lz4-java", LZ4_INPUT_CLASS,
+					LZ4_OUTPUT_CLASS);
+			try {
+				Class<?> bs = Class.forName(LZ4_OUTPUT_CLASS + "$BLOCKSIZE");
+				blockSize = bs.getField("SIZE_64KB").get(null);
+				outputCtor = findConstructor(LZ4_OUTPUT_CLASS,
+						OutputStream.class, bs);
+			} catch (ReflectiveOperationException | LinkageError e) {
+				outputCtor = null;
+			}
+		}
+
+		@Override
+		public OutputStream getOutputStream(OutputStream out, int bufsize,
+				boolean syncFlush) throws IOException {
+			return (OutputStream) create(outputCtor, out, blockSize);
+		}
+	}
+}
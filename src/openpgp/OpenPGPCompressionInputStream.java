@@ -44,7 +44,12 @@ public class OpenPGPCompressionInputStream extends OpenPGPFilterInputStream {
 
 	public OpenPGPCompressionInputStream(InputStream in, int buffersize)
 			throws IOException {
-		super(in, buffersize);
+		this(in, buffersize, null);
+	}
+
+	OpenPGPCompressionInputStream(InputStream in, int buffersize,
+			OpenPGPBuffers buffers) throws IOException {
+		super(in, buffersize, buffers, OpenPGPBuffers.COMPRESSION);
 
 		if (readBlocking(buf, 0, 2) != 2) {
 			throw new IOException("Not enough input");
@@ -79,24 +84,35 @@ public class OpenPGPCompressionInputStream extends OpenPGPFilterInputStream {
 			inputPos = 0;
 		}
 		// check compression algorithm
-		switch (buf[inputPos]) {
-		case 0:
-			compression = OpenPGPCompression.NONE;
-		case 1:
-			compression = OpenPGPCompression.ZIP;
-			break;
-		case 2:
-			compression = OpenPGPCompression.ZLIB;
-			break;
-		case 3:
-			compression = OpenPGPCompression.BZIP2;
-			break;
-		default:
-			throw new IOException("Unsupported compression algorithm");
-		}
+		compression = OpenPGPCompression.fromId(buf[inputPos] & 0xFF);
+		OpenPGPCompressionCodecs.checkEnabled(compression);
 		packetLen--;
 
 		inputPos = 0;
 		inputLen = 0;
 	}
+
+	@Override
+	protected int fill() throws IOException {
+		int n = super.fill();
+		if (n > 0 && progress != null) {
+			progress.compressed += n;
+		}
+		return n;
+	}
+
+	OpenPGPCompressionInputStream(InputStream in, OpenPGPSnapshot snap) {
+		super(in, snap);
+		compression = snap.compression;
+	}
+
+	@Override
+	public OpenPGPSnapshot snapshot() throws IOException {
+		if (compression != OpenPGPCompression.NONE) {
+			throw new IOException("Compressed streams do not support snapshots");
+		}
+		OpenPGPSnapshot snap = save(OpenPGPSnapshot.Layer.COMPRESSION);
+		snap.compression = compression;
+		return snap;
+	}
 }
@@ -25,34 +25,36 @@ public class OpenPGPCompressionOutputStream extends OpenPGPFilterOutputStream {
 
 	public OpenPGPCompressionOutputStream(OutputStream os, int buffersize,
 			OpenPGPCompression compression) throws IOException {
-		super(os, buffersize);
+		this(os, buffersize, buffersize, compression);
+	}
+
+	public OpenPGPCompressionOutputStream(OutputStream os, int buffersize,
+			int chunksize, OpenPGPCompression compression) throws IOException {
+		super(os, buffersize, chunksize);
+		OpenPGPCompressionCodecs.checkEnabled(compression);
 
 		// new compressed data packet
 		out.write(0xC8);
-		/*
-		 * ID           Algorithm
-		 * --           ---------
-		 * 0          - Uncompressed
-		 * 1          - ZIP [RFC1951]
-		 * 2          - ZLIB [RFC1950]
-		 * 3          - BZip2 [BZ2]
-		 * 100 to 110 - Private/Experimental algorithm
-		 */
-
-		// set compression algorithm to deflate
-		switch (compression) {
-		case NONE:
-			buf[0] = 0;
-		case ZIP:
-			buf[0] = 1;
-			break;
-		case ZLIB:
-			buf[0] = 2;
-			break;
-		case BZIP2:
-			buf[0] = 3;
-			break;
-		}
+
+		// set compression algorithm, see OpenPGPCompression for the IDs
+		buf[0] = (byte) compression.getId();
 		pos = 1;
 	}
+
+	OpenPGPCompressionOutputStream(OutputStream os, OpenPGPSnapshot snap) {
+		super(os, snap);
+	}
+
+	@Override
+	public OpenPGPSnapshot snapshot() throws IOException {
+		return save(OpenPGPSnapshot.Layer.COMPRESSION);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		super.write(b, off, len);
+		if (progress != null) {
+			progress.compressed += len;
+		}
+	}
 }
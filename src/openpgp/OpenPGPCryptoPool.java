@@ -0,0 +1,199 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Shared pool of JCE objects. The provider lookup of getInstance() and the
+ * seeding of a new SecureRandom are done once instead of for every stream.
+ * Streams take the objects when they are opened and give them back on
+ * close. A stream that is never closed only costs a new instance later.
+ *
+ * Ciphers are set to an all zero key before they go back to the pool, so
+ * an idle cipher does not hold the key schedule of an old message.
+ */
+public class OpenPGPCryptoPool {
+	static final String CIPHER = "AES/CFB128/NoPadding";
+	static final String BLOCK_CIPHER = "AES/ECB/NoPadding";
+
+	// upper limit of idle objects per algorithm
+	private static final int MAX_IDLE = 64;
+
+	private static volatile boolean enabled = true;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private static final SecretKeySpec SCRUB_KEY = new SecretKeySpec(
+			new byte[32], "AES");
+	private static final IvParameterSpec SCRUB_IV = new IvParameterSpec(
+			new byte[16]);
+
+	private static final Pool<Cipher> ciphers = new Pool<Cipher>();
+	private static final Pool<Cipher> blockCiphers = new Pool<Cipher>();
+	private static final Pool<MessageDigest> sha1 = new Pool<MessageDigest>();
+	private static final Pool<MessageDigest> sha256 = new Pool<MessageDigest>();
+
+	private static class Pool<T> {
+		final Queue<T> idle = new ConcurrentLinkedQueue<T>();
+		final AtomicInteger size = new AtomicInteger();
+
+		T poll() {
+			T t = idle.poll();
+			if (t != null)
+				size.decrementAndGet();
+			return t;
+		}
+
+		void offer(T t) {
+			if (size.incrementAndGet() <= MAX_IDLE) {
+				idle.offer(t);
+			} else {
+				size.decrementAndGet();
+			}
+		}
+	}
+
+	/*
+	 * Creates count objects of every kind and seeds the SecureRandom, so
+	 * that the first streams do not pay for it. Also selects the faster
+	 * CFB decryption engine. Meant for service startup.
+	 */
+	public static void prewarm(int count) throws NoSuchAlgorithmException {
+		random.nextBytes(new byte[16]);
+		OpenPGPCFBDecryptor.calibrate();
+
+		count = Math.min(count, MAX_IDLE);
+		Cipher[] c = new Cipher[count];
+		Cipher[] b = new Cipher[count];
+		MessageDigest[] m1 = new MessageDigest[count];
+		MessageDigest[] m256 = new MessageDigest[count];
+		for (int i = 0; i < count; i++) {
+			c[i] = getCipher();
+			b[i] = getBlockCipher();
+			m1[i] = getSHA1();
+			m256[i] = getSHA256();
+		}
+		for (int i = 0; i < count; i++) {
+			release(c[i]);
+			releaseBlockCipher(b[i]);
+			releaseSHA1(m1[i]);
+			releaseSHA256(m256[i]);
+		}
+	}
+
+	/*
+	 * Only meant to compare the performance with and without the pool
+	 */
+	public static void setEnabled(boolean enabled) {
+		OpenPGPCryptoPool.enabled = enabled;
+	}
+
+	static SecureRandom getRandom() {
+		return enabled ? random : new SecureRandom();
+	}
+
+	static Cipher getCipher() throws NoSuchAlgorithmException {
+		Cipher c = enabled ? ciphers.poll() : null;
+		if (c == null) {
+			try {
+				c = Cipher.getInstance(CIPHER);
+			} catch (NoSuchPaddingException e) {
+				// nopadding always exists
+				throw new NoSuchAlgorithmException(e);
+			}
+		}
+		return c;
+	}
+
+	/*
+	 * The cipher must be initialized again before it is used
+	 */
+	static void release(Cipher c) {
+		if (enabled && c != null && scrub(c, SCRUB_IV))
+			ciphers.offer(c);
+	}
+
+	static Cipher getBlockCipher() throws NoSuchAlgorithmException {
+		Cipher c = enabled ? blockCiphers.poll() : null;
+		if (c == null) {
+			try {
+				c = Cipher.getInstance(BLOCK_CIPHER);
+			} catch (NoSuchPaddingException e) {
+				// nopadding always exists
+				throw new NoSuchAlgorithmException(e);
+			}
+		}
+		return c;
+	}
+
+	static void releaseBlockCipher(Cipher c) {
+		if (enabled && c != null && scrub(c, null))
+			blockCiphers.offer(c);
+	}
+
+	// a cipher that cannot be scrubbed is not pooled
+	private static boolean scrub(Cipher c, IvParameterSpec iv) {
+		try {
+			if (iv != null) {
+				c.init(Cipher.ENCRYPT_MODE, SCRUB_KEY, iv);
+			} else {
+				c.init(Cipher.ENCRYPT_MODE, SCRUB_KEY);
+			}
+			return true;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	static MessageDigest getSHA1() throws NoSuchAlgorithmException {
+		MessageDigest md = enabled ? sha1.poll() : null;
+		return md != null ? md : MessageDigest.getInstance("SHA-1");
+	}
+
+	static void releaseSHA1(MessageDigest md) {
+		if (enabled && md != null) {
+			md.reset();
+			sha1.offer(md);
+		}
+	}
+
+	static MessageDigest getSHA256() throws NoSuchAlgorithmException {
+		MessageDigest md = enabled ? sha256.poll() : null;
+		return md != null ? md : MessageDigest.getInstance("SHA-256");
+	}
+
+	static void releaseSHA256(MessageDigest md) {
+		if (enabled && md != null) {
+			md.reset();
+			sha256.offer(md);
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Limits for the decompression of messages. A small message can expand to
+ * an almost unlimited amount of data, so services that decrypt untrusted
+ * input should set them. The limits are checked while the data is
+ * decompressed and a DecompressionLimitException is thrown as soon as one
+ * of them is exceeded. All limits are off by default, 0 disables a limit.
+ *
+ * The limits are taken when a stream is opened, changing them does not
+ * affect open streams.
+ */
+public class OpenPGPDecompressionLimits {
+	// the ratio is only checked after this much output
+	static final long RATIO_MIN_SIZE = 1 << 20;
+
+	// bzip2 needs about 5 bytes per byte of the block size to decompress
+	private static final long BZIP2_BYTES_PER_LEVEL = 5 * 100000;
+
+	private static volatile long maxSize = 0;
+	private static volatile int maxRatio = 0;
+	private static volatile long maxBZip2Memory = 0;
+
+	private static final AtomicLong sizeRejected = new AtomicLong();
+	private static final AtomicLong ratioRejected = new AtomicLong();
+	private static final AtomicLong memoryRejected = new AtomicLong();
+
+	/*
+	 * Maximum size of the plaintext of a message, compressed or not
+	 */
+	public static void setMaxSize(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Invalid size: " + bytes);
+		}
+		maxSize = bytes;
+	}
+
+	public static long getMaxSize() {
+		return maxSize;
+	}
+
+	/*
+	 * Maximum number of decompressed bytes per compressed byte. It is only
+	 * checked after the first megabyte.
+	 */
+	public static void setMaxRatio(int ratio) {
+		if (ratio < 0) {
+			throw new IllegalArgumentException("Invalid ratio: " + ratio);
+		}
+		maxRatio = ratio;
+	}
+
+	public static int getMaxRatio() {
+		return maxRatio;
+	}
+
+	/*
+	 * Maximum memory for the bzip2 decompressor, which depends on the block
+	 * size in the header. Level 9 needs about 4.5 MB.
+	 */
+	public static void setMaxBZip2Memory(long bytes) {
+		if (bytes < 0) {
+			throw new IllegalArgumentException("Invalid size: " + bytes);
+		}
+		maxBZip2Memory = bytes;
+	}
+
+	public static long getMaxBZip2Memory() {
+		return maxBZip2Memory;
+	}
+
+	public static long getRejectedCount() {
+		return sizeRejected.get() + ratioRejected.get() + memoryRejected.get();
+	}
+
+	public static long getSizeRejectedCount() {
+		return sizeRejected.get();
+	}
+
+	public static long getRatioRejectedCount() {
+		return ratioRejected.get();
+	}
+
+	public static long getMemoryRejectedCount() {
+		return memoryRejected.get();
+	}
+
+	public static void resetStatistics() {
+		sizeRejected.set(0);
+		ratioRejected.set(0);
+		memoryRejected.set(0);
+	}
+
+	/*
+	 * Called with the block size from the header of a bzip2 stream
+	 */
+	static void checkBZip2Level(int level) throws DecompressionLimitException {
+		long max = maxBZip2Memory;
+		if (max > 0 && level * BZIP2_BYTES_PER_LEVEL > max) {
+			memoryRejected.incrementAndGet();
+			throw new DecompressionLimitException("bzip2 block size "
+					+ level + "00k needs more than " + max + " bytes");
+		}
+	}
+
+	/*
+	 * Output of a single message. The size is counted at the literal data,
+	 * the ratio at the output of the decompressor.
+	 */
+	static class Budget {
+		private final long maxSize = OpenPGPDecompressionLimits.maxSize;
+		private final int maxRatio = OpenPGPDecompressionLimits.maxRatio;
+		private long size = 0;
+		private long decompressed = 0;
+
+		boolean isSizeLimited() {
+			return maxSize > 0;
+		}
+
+		boolean isRatioLimited() {
+			return maxRatio > 0;
+		}
+
+		void addPlaintext(long n) throws DecompressionLimitException {
+			size += n;
+			if (maxSize > 0 && size > maxSize) {
+				if (size - n <= maxSize) {
+					sizeRejected.incrementAndGet();
+				}
+				throw new DecompressionLimitException("Plaintext exceeds "
+						+ maxSize + " bytes");
+			}
+		}
+
+		void addDecompressed(long n, long compressed)
+				throws DecompressionLimitException {
+			long before = decompressed;
+			decompressed += n;
+			if (maxRatio > 0 && decompressed > RATIO_MIN_SIZE
+					&& decompressed > maxRatio * Math.max(compressed, 1)) {
+				if (before <= RATIO_MIN_SIZE
+						|| before <= maxRatio * Math.max(compressed, 1)) {
+					ratioRejected.incrementAndGet();
+				}
+				throw new DecompressionLimitException(
+						"Compression ratio exceeds " + maxRatio + ":1");
+			}
+		}
+	}
+
+	/*
+	 * Counts the output of the decompressor against the input it consumed
+	 * from the compressed packet
+	 */
+	static InputStream limit(InputStream decompressed,
+			OpenPGPFilterInputStream compressed) {
+		Budget budget = new Budget();
+		// NONE returns the packet itself
+		if (!budget.isRatioLimited() || decompressed == compressed)
+			return decompressed;
+		return new LimitedInputStream(decompressed, compressed, budget);
+	}
+
+	private static class LimitedInputStream extends FilterInputStream {
+		private final OpenPGPFilterInputStream compressed;
+		private final Budget budget;
+
+		LimitedInputStream(InputStream in, OpenPGPFilterInputStream compressed,
+				Budget budget) {
+			super(in);
+			this.compressed = compressed;
+			this.budget = budget;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1) {
+				budget.addDecompressed(1, compressed.getInputCount());
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				budget.addDecompressed(n, compressed.getInputCount());
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] b = new byte[(int) Math.min(n, 8192)];
+			long skipped = 0;
+			while (skipped < n) {
+				int r = read(b, 0, (int) Math.min(n - skipped, b.length));
+				if (r < 0)
+					break;
+				skipped += r;
+			}
+			return skipped;
+		}
+	}
+}
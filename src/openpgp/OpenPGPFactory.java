@@ -21,16 +21,13 @@ package openpgp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.reflect.Constructor;
+import java.io.PushbackInputStream;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 public class OpenPGPFactory {
-	private static final String BZIP2_INPUT_CLASS = "org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream";
-	private static final String BZIP2_OUTPUT_CLASS = "org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream";
+	// number of buffers between two threads of a pipelined stream
+	private static final int PIPELINE_DEPTH = 4;
 
 	public static InputStream getInputStream(InputStream is, String password)
 			throws NoSuchAlgorithmException, IOException,
@@ -52,87 +49,356 @@ public class OpenPGPFactory {
 	public static InputStream getInputStream(InputStream is, String password,
 			int bufsize) throws NoSuchAlgorithmException, IOException,
 			WrongPasswordException {
+		return getInputStream(is, new OpenPGPOptions(password)
+				.setBufferSize(bufsize));
+	}
+
+	/*
+	 * Decrypts with the password or the key of the options, see
+	 * OpenPGPOptions
+	 */
+	public static InputStream getInputStream(InputStream is,
+			OpenPGPOptions options) throws NoSuchAlgorithmException,
+			IOException, WrongPasswordException {
+		if (options.password == null && options.key == null) {
+			throw new IllegalArgumentException(
+					"Only a single password or a key can decrypt");
+		}
+		int bufsize = options.bufferSize;
+		boolean pipelined = options.pipelined;
+		OpenPGPProgress progress = options.progress;
+
+		setPhase(progress, OpenPGPProgressListener.Phase.KEY_DERIVATION);
+		is = getEncryptedStream(is, bufsize, pipelined);
+		OpenPGPFilterInputStream in;
+		try {
+			if (options.key != null) {
+				in = new OpenPGPCipherInputStream(is, options.key, bufsize,
+						pipelined);
+			} else {
+				in = new OpenPGPCipherInputStream(is, options.password,
+						bufsize, pipelined);
+			}
+		} catch (IOException | NoSuchAlgorithmException
+				| WrongPasswordException | RuntimeException e) {
+			closeReader(is, pipelined);
+			throw e;
+		}
+		in.setProgress(progress);
+		setPhase(progress, OpenPGPProgressListener.Phase.STREAMING);
+		return getPlaintextStream(in, bufsize, pipelined, progress, null);
+	}
+
+	private static void setPhase(OpenPGPProgress progress,
+			OpenPGPProgressListener.Phase phase) {
+		if (progress != null) {
+			progress.setPhase(phase);
+		}
+	}
+
+	/*
+	 * Returns the plaintext only after the whole message was read and its
+	 * MDC verified. Up to memoryLimit bytes are kept on the heap, the rest
+	 * goes to a temporary file in dir, or the default temporary directory
+	 * if dir is null.
+	 */
+	public static OpenPGPVerifiedInputStream getVerifiedInputStream(
+			InputStream is, OpenPGPOptions options, long memoryLimit,
+			Path dir) throws NoSuchAlgorithmException, IOException,
+			WrongPasswordException {
+		return new OpenPGPVerifiedInputStream(getInputStream(is, options),
+				options.bufferSize, memoryLimit, dir);
+	}
+
+	/*
+	 * The reader thread of a stream that is not returned has to be stopped
+	 * here, nobody else can
+	 */
+	private static void closeReader(InputStream is, boolean pipelined) {
+		if (pipelined) {
+			try {
+				is.close();
+			} catch (IOException e) {
+			}
+		}
+	}
 
-		OpenPGPFilterInputStream in = new OpenPGPCipherInputStream(is,
-				password, bufsize);
+	static InputStream getEncryptedStream(InputStream is,
+			int bufsize, boolean pipelined) throws IOException {
+		// ASCII armored input is detected by the first byte
+		PushbackInputStream pis = new PushbackInputStream(is, 1);
+		int first = pis.read();
+		if (first != -1) {
+			pis.unread(first);
+		}
+		is = pis;
+		if (OpenPGPArmorInputStream.checkStreamType(first)) {
+			is = new OpenPGPArmorInputStream(is, bufsize);
+		}
+
+		if (pipelined) {
+			is = new OpenPGPPipelineInputStream(is, bufsize, PIPELINE_DEPTH,
+					"reader");
+		}
+		return is;
+	}
+
+	/*
+	 * Stacks the decompression and literal data streams on top of the
+	 * decrypted data
+	 */
+	static OpenPGPLiteralInputStream getPlaintextStream(
+			OpenPGPFilterInputStream in, int bufsize, OpenPGPBuffers buffers)
+			throws IOException {
+		return getPlaintextStream(in, bufsize, false, null, buffers);
+	}
+
+	private static OpenPGPLiteralInputStream getPlaintextStream(
+			OpenPGPFilterInputStream in, int bufsize, boolean pipelined,
+			OpenPGPProgress progress, OpenPGPBuffers buffers)
+			throws IOException {
 		InputStream res = null;
 
-		int hint = in.peek();
+		int hint;
+		try {
+			hint = in.peek();
+		} catch (IOException e) {
+			try {
+				in.close();
+			} catch (IOException e2) {
+			}
+			throw e;
+		}
 		if (hint == -1) {
 			in.close();
 			throw new IOException("Invalid input stream");
 		}
 
+		InputStream plain = in;
+		if (pipelined) {
+			plain = new OpenPGPPipelineInputStream(in, bufsize,
+					PIPELINE_DEPTH, "cipher");
+		}
+
 		if (OpenPGPCompressionInputStream.checkStreamType(hint)) {
 			OpenPGPCompressionInputStream ci = new OpenPGPCompressionInputStream(
-					in, bufsize);
-
-			switch (ci.getCompression()) {
-			case ZIP:
-				res = new InflaterInputStream(ci, new Inflater(true));
-				break;
-			case ZLIB:
-				res = new InflaterInputStream(ci, new Inflater());
-				break;
-			case BZIP2:
+					plain, bufsize, buffers);
+			ci.setProgress(progress);
+
+			try {
+				res = OpenPGPCompressionCodecs.get(ci.getCompression())
+						.getInputStream(ci, bufsize);
+			} catch (IOException e) {
 				try {
-					Class<?> clazz = Class.forName(BZIP2_INPUT_CLASS);
-					for (Constructor<?> ctor : clazz.getConstructors()) {
-						if (ctor.getParameterTypes().length == 1) {
-							res = (InputStream) ctor.newInstance(ci);
-						}
-					}
-				} catch (Exception e) {
 					ci.close();
-					throw new IOException("Unable to load apache commons bzip2 class");
+				} catch (IOException e2) {
 				}
-				break;
-			default:
-				res = ci;
-				break;
+				throw e;
+			}
+			res = OpenPGPDecompressionLimits.limit(res, ci);
+			if (pipelined) {
+				res = new OpenPGPPipelineInputStream(res, bufsize,
+						PIPELINE_DEPTH, "inflater");
 			}
 		} else {
-			res = in;
+			res = plain;
 		}
 
-		res = new OpenPGPLiteralInputStream(res, bufsize);
-
-		return res;
+		OpenPGPLiteralInputStream lis = new OpenPGPLiteralInputStream(res,
+				bufsize, buffers);
+		lis.setProgress(progress);
+		return lis;
 	}
 
 	public static OutputStream getOutputStream(OutputStream os,
 			String password, OpenPGPCompression compression, int bufsize)
 			throws IOException, NoSuchAlgorithmException {
+		return getOutputStream(os, new OpenPGPOptions(password)
+				.setCompression(compression).setBufferSize(bufsize));
+	}
 
-		OutputStream res = new OpenPGPCipherOutputStream(os, password, bufsize);
-		res = new OpenPGPCompressionOutputStream(res, bufsize, compression);
-
-		switch (compression) {
-		case ZIP:
-			res = new DeflaterOutputStream(res, new Deflater(
-					Deflater.BEST_COMPRESSION, true));
-			break;
-		case ZLIB:
-			res = new DeflaterOutputStream(res, new Deflater(
-					Deflater.BEST_COMPRESSION, false));
-			break;
-		case BZIP2:
-			try {
-				Class<?> clazz = Class.forName(BZIP2_OUTPUT_CLASS);
-				for (Constructor<?> ctor : clazz.getConstructors()) {
-					if (ctor.getParameterTypes().length == 1) {
-						res = (OutputStream) ctor.newInstance(res);
-					}
-				}
-			} catch (Exception e) {
-				res.close();
-				throw new IOException("Unable to load apache commons bzip2 class");
+	/*
+	 * Encrypts with the password, the passwords, the key or a key from the
+	 * pool of the options, see OpenPGPOptions
+	 */
+	public static OutputStream getOutputStream(OutputStream os,
+			OpenPGPOptions options) throws IOException,
+			NoSuchAlgorithmException {
+		OpenPGPCompressionCodec codec = OpenPGPCompressionCodecs
+				.get(options.compression);
+		int bufsize = options.bufferSize;
+		int chunksize = options.getChunkSize();
+		OpenPGPProgress progress = options.progress;
+
+		setPhase(progress, OpenPGPProgressListener.Phase.KEY_DERIVATION);
+		OpenPGPFilterOutputStream cos;
+		if (options.key != null) {
+			cos = new OpenPGPCipherOutputStream(os, options.key, bufsize,
+					chunksize, options.sessionKey);
+		} else if (options.keys != null) {
+			cos = new OpenPGPCipherOutputStream(os, options.keys, bufsize,
+					chunksize, options.sessionKey);
+		} else if (options.passwords != null) {
+			cos = new OpenPGPCipherOutputStream(os, options.passwords,
+					bufsize, chunksize, options.sessionKey);
+		} else {
+			cos = new OpenPGPCipherOutputStream(os, options.password,
+					bufsize, chunksize, options.sessionKey);
+		}
+		cos.setFlushMode(options.flushMode);
+		cos.setProgress(progress);
+		OutputStream res = getPlaintextStream(cos, codec, bufsize, chunksize,
+				options.flushMode, progress);
+		setPhase(progress, OpenPGPProgressListener.Phase.STREAMING);
+		return res;
+	}
+
+	/*
+	 * Writes a separate message to every output, encrypted with the
+	 * password of the options at the same index. The data is compressed
+	 * only once and only the encryption is repeated for every output.
+	 */
+	public static OutputStream getOutputStream(OutputStream[] os,
+			OpenPGPOptions options) throws IOException,
+			NoSuchAlgorithmException {
+		String[] passwords = options.passwords;
+		if (passwords == null || os.length != passwords.length) {
+			throw new IllegalArgumentException(
+					"Need one password for every output");
+		}
+		OpenPGPCompressionCodec codec = OpenPGPCompressionCodecs
+				.get(options.compression);
+		int bufsize = options.bufferSize;
+		int chunksize = options.getChunkSize();
+		OpenPGPProgress progress = options.progress;
+
+		setPhase(progress, OpenPGPProgressListener.Phase.KEY_DERIVATION);
+		OutputStream[] outs = new OutputStream[os.length];
+		try {
+			for (int i = 0; i < os.length; i++) {
+				OpenPGPFilterOutputStream cos = new OpenPGPCipherOutputStream(
+						os[i], passwords[i], bufsize, chunksize,
+						options.sessionKey);
+				cos.setFlushMode(options.flushMode);
+				cos.setProgress(progress);
+				outs[i] = cos;
+			}
+		} catch (IOException | NoSuchAlgorithmException e) {
+			for (int i = 0; i < os.length; i++) {
+				os[i].close();
 			}
-			break;
+			throw e;
+		}
+		OutputStream tee = new OpenPGPTeeOutputStream(outs);
+		OutputStream res = getPlaintextStream(tee, codec, bufsize, chunksize,
+				options.flushMode, progress);
+		setPhase(progress, OpenPGPProgressListener.Phase.STREAMING);
+		return res;
+	}
+
+	/*
+	 * Exact size of the output of getOutputStream() with
+	 * OpenPGPCompression.NONE for length bytes of data, e.g. for a
+	 * Content-Length header. Only valid if the chunk size is the buffer size
+	 * and flush() is not called in flush mode. Does not depend on how the
+	 * data is split into writes. With a bigger chunk size the output is at
+	 * most this long.
+	 */
+	public static long getEncryptedLength(long length, int bufsize,
+			boolean sessionKey) {
+		// literal data packet: format, filename length and date
+		long literal = OpenPGPFilterOutputStream.packetLength(6 + length,
+				bufsize);
+		// compressed data packet: algorithm
+		long compressed = OpenPGPFilterOutputStream.packetLength(
+				1 + literal, bufsize);
+		return OpenPGPCipherOutputStream.encryptedLength(compressed,
+				bufsize, sessionKey);
+	}
+
+	/*
+	 * Copies the state of a stream returned by getOutputStream() or
+	 * getInputStream() for resumeOutputStream() or resumeInputStream() in
+	 * the same process. Only works for binary messages, see
+	 * OpenPGPSnapshot.
+	 */
+	public static OpenPGPSnapshot snapshot(OutputStream os)
+			throws IOException {
+		if (!(os instanceof OpenPGPFilterOutputStream)) {
+			throw new IOException("Stream does not support snapshots");
+		}
+		return ((OpenPGPFilterOutputStream) os).snapshot();
+	}
+
+	public static OpenPGPSnapshot snapshot(InputStream is)
+			throws IOException {
+		if (!(is instanceof OpenPGPFilterInputStream)) {
+			throw new IOException("Stream does not support snapshots");
+		}
+		return ((OpenPGPFilterInputStream) is).snapshot();
+	}
+
+	/*
+	 * Continues writing a message from a snapshot. os has to continue the
+	 * original output at snap.getOffset(). The snapshot can be used more
+	 * than once.
+	 */
+	public static OutputStream resumeOutputStream(OutputStream os,
+			OpenPGPSnapshot snap) throws IOException, NoSuchAlgorithmException {
+		if (snap.next != null) {
+			os = resumeOutputStream(os, snap.next);
+		}
+		switch (snap.layer) {
+		case LITERAL:
+			if (snap.deflate != null) {
+				os = OpenPGPCompressionCodecs.resumeDeflate(os,
+						snap.bufferSize, snap.flushMode, snap.deflate,
+						snap.adler);
+			}
+			return new OpenPGPLiteralOutputStream(os, snap);
+		case COMPRESSION:
+			return new OpenPGPCompressionOutputStream(os, snap);
+		default:
+			return new OpenPGPCipherOutputStream(os, snap);
+		}
+	}
+
+	/*
+	 * Continues reading a message from a snapshot. is has to continue the
+	 * original input at snap.getOffset().
+	 */
+	public static InputStream resumeInputStream(InputStream is,
+			OpenPGPSnapshot snap) throws IOException, NoSuchAlgorithmException {
+		if (snap.next != null) {
+			is = resumeInputStream(is, snap.next);
+		}
+		switch (snap.layer) {
+		case LITERAL:
+			return new OpenPGPLiteralInputStream(is, snap);
+		case COMPRESSION:
+			return new OpenPGPCompressionInputStream(is, snap);
 		default:
-			break;
+			return new OpenPGPCipherInputStream(is, snap);
 		}
+	}
+
+	/*
+	 * Stacks the literal data and compression streams on top of the
+	 * encryption
+	 */
+	static OutputStream getPlaintextStream(OutputStream cos,
+			OpenPGPCompressionCodec codec, int bufsize, int chunksize,
+			boolean flushMode, OpenPGPProgress progress) throws IOException {
+		OpenPGPFilterOutputStream zos = new OpenPGPCompressionOutputStream(
+				cos, bufsize, chunksize, codec.getCompression());
+		zos.setFlushMode(flushMode);
+		zos.setProgress(progress);
+		OpenPGPFilterOutputStream los = new OpenPGPLiteralOutputStream(
+				codec.getOutputStream(zos, bufsize, flushMode), bufsize,
+				chunksize);
+		los.setFlushMode(flushMode);
+		los.setProgress(progress);
 
-		return new OpenPGPLiteralOutputStream(res);
+		return los;
 	}
 }
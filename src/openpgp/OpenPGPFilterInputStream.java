@@ -38,7 +38,19 @@ public abstract class OpenPGPFilterInputStream extends FilterInputStream {
 	protected int inputPos = 0;
 	protected int inputRes = 0;
 
+	// number of bytes consumed from the underlying stream
+	protected long inputCount = 0;
+
+	// null unless the stream was created with one
+	OpenPGPProgress progress;
+
 	public OpenPGPFilterInputStream(InputStream in, int buffersize) {
+		this(in, buffersize, null, 0);
+	}
+
+	// takes the buffer from the given slot of buffers, if not null
+	OpenPGPFilterInputStream(InputStream in, int buffersize,
+			OpenPGPBuffers buffers, int slot) {
 		super(in);
 
 		int exponent = 9;
@@ -47,7 +59,22 @@ public abstract class OpenPGPFilterInputStream extends FilterInputStream {
 			exponent++;
 		BUFFERSIZE = 1 << exponent;
 		BUFFERPOWER = (byte) exponent;
-		buf = new byte[BUFFERSIZE];
+		buf = buffers != null ? buffers.get(slot, BUFFERSIZE)
+				: new byte[BUFFERSIZE];
+	}
+
+	// continues from a snapshot, nothing is read
+	OpenPGPFilterInputStream(InputStream in, OpenPGPSnapshot snap) {
+		this(in, snap.bufferSize);
+		buf = snap.buf.clone();
+		pos = snap.pos;
+		len = snap.len;
+		packetLen = snap.packetLen;
+		partial = snap.partial;
+		inputPos = snap.inputPos;
+		inputLen = snap.inputLen;
+		inputRes = snap.inputRes;
+		inputCount = snap.inputCount;
 	}
 
 	protected static int decodeLengthSpace(byte input) throws IOException {
@@ -120,6 +147,7 @@ public abstract class OpenPGPFilterInputStream extends FilterInputStream {
 		int ret = 0;
 		int tlen = 0;
 		while (len > 0 && (ret = in.read(b, off, len)) != -1) {
+			inputCount += ret;
 			tlen += ret;
 			off += ret;
 			len -= ret;
@@ -217,6 +245,7 @@ public abstract class OpenPGPFilterInputStream extends FilterInputStream {
 			return -1;
 		} else if (inputRes > 0) {
 			inputLen += inputRes;
+			inputCount += inputRes;
 		}
 		return inputLen;
 	}
@@ -288,6 +317,46 @@ public abstract class OpenPGPFilterInputStream extends FilterInputStream {
 		return l;
 	}
 
+	public long getInputCount() {
+		return inputCount;
+	}
+
+	void setProgress(OpenPGPProgress progress) {
+		this.progress = progress;
+	}
+
+	/*
+	 * Saves the state of this stream and the streams below it, see
+	 * OpenPGPSnapshot
+	 */
+	public OpenPGPSnapshot snapshot() throws IOException {
+		throw new IOException("Stream does not support snapshots");
+	}
+
+	OpenPGPSnapshot save(OpenPGPSnapshot.Layer layer) throws IOException {
+		OpenPGPSnapshot next = null;
+		if (layer != OpenPGPSnapshot.Layer.CIPHER) {
+			if (!(in instanceof OpenPGPFilterInputStream)) {
+				throw new IOException(
+						"Compressed streams do not support snapshots");
+			}
+			next = ((OpenPGPFilterInputStream) in).snapshot();
+		}
+
+		OpenPGPSnapshot snap = new OpenPGPSnapshot(layer, next);
+		snap.bufferSize = BUFFERSIZE;
+		snap.buf = buf.clone();
+		snap.pos = pos;
+		snap.len = len;
+		snap.packetLen = packetLen;
+		snap.partial = partial;
+		snap.inputPos = inputPos;
+		snap.inputLen = inputLen;
+		snap.inputRes = inputRes;
+		snap.inputCount = inputCount;
+		return snap;
+	}
+
 	public int peek() throws IOException {
 		if (this.len == -1)
 			return -1;
@@ -306,10 +375,19 @@ public abstract class OpenPGPFilterInputStream extends FilterInputStream {
 
 	@Override
 	public void close() throws IOException {
-		fill();
+		try {
+			fill();
 
-		if (len > 0) {
-			throw new IOException("Premature close. This is a security risk!");
+			if (len > 0) {
+				throw new IOException("Premature close. This is a security risk!");
+			}
+		} catch (IOException e) {
+			// the layers below are closed anyway, so no thread is left behind
+			try {
+				in.close();
+			} catch (IOException e2) {
+			}
+			throw e;
 		}
 
 		in.close();
@@ -28,23 +28,150 @@ public abstract class OpenPGPFilterOutputStream extends FilterOutputStream {
 	protected byte PARTIAL_BUFFERSIZE;
 	protected int BUFFERSIZE;
 
+	/*
+	 * maximum size of a partial packet, at least BUFFERSIZE. Bigger chunks
+	 * are only written if the data is already at hand, so the buffer does
+	 * not have to be as big as a chunk.
+	 */
+	protected byte CHUNKPOWER;
+
+	/*
+	 * In flush mode flush() writes out everything that is buffered as
+	 * partial packets. The first partial packet must be at least 512 bytes
+	 * long, so nothing is written before that.
+	 */
+	protected boolean flushMode = false;
+	// true as soon as the first partial packet was written
+	protected boolean started = false;
+
 	// only used to make write more efficient
 	protected byte[] onebuf = new byte[1];
 
 	protected int pos = 0;
 	protected byte[] buf;
 
+	// null unless the stream was created with one
+	OpenPGPProgress progress;
+
 	public OpenPGPFilterOutputStream(OutputStream out, int buffersize) {
-		super(out);
+		this(out, buffersize, buffersize);
+	}
 
-		int exponent = 9;
+	public OpenPGPFilterOutputStream(OutputStream out, int buffersize,
+			int chunksize) {
+		super(out);
 
-		while ((1 << exponent) < buffersize && exponent < 30)
-			exponent++;
+		int exponent = bufferPower(buffersize);
 		BUFFERSIZE = 1 << exponent;
 		BUFFERPOWER = (byte) exponent;
 		PARTIAL_BUFFERSIZE = (byte) (224 + BUFFERPOWER);
 		buf = new byte[BUFFERSIZE];
+
+		while ((1 << exponent) < chunksize && exponent < 30)
+			exponent++;
+		CHUNKPOWER = (byte) exponent;
+	}
+
+	// continues from a snapshot, nothing is written
+	OpenPGPFilterOutputStream(OutputStream out, OpenPGPSnapshot snap) {
+		this(out, snap.bufferSize, snap.chunkSize);
+		buf = snap.buf.clone();
+		pos = snap.pos;
+		started = snap.started;
+		flushMode = snap.flushMode;
+	}
+
+	/*
+	 * buffers are a power of two between 512 bytes and 1 GB
+	 */
+	static int bufferPower(int buffersize) {
+		int exponent = 9;
+		while ((1 << exponent) < buffersize && exponent < 30)
+			exponent++;
+		return exponent;
+	}
+
+	/*
+	 * Size of a packet with a body of len bytes written by this class
+	 * with chunks of buffersize, including the tag
+	 */
+	static long packetLength(long len, int buffersize) {
+		int bufsize = 1 << bufferPower(buffersize);
+		return 1 + len / bufsize + encodeLength((int) (len % bufsize)).length
+				+ len;
+	}
+
+	/*
+	 * largest partial packet size not bigger than available
+	 */
+	protected int chunkPower(long available) {
+		int power = BUFFERPOWER;
+		while (power < CHUNKPOWER && (1L << (power + 1)) <= available)
+			power++;
+		return power;
+	}
+
+	public void setFlushMode(boolean flushMode) {
+		this.flushMode = flushMode;
+	}
+
+	public boolean isFlushMode() {
+		return flushMode;
+	}
+
+	void setProgress(OpenPGPProgress progress) {
+		this.progress = progress;
+	}
+
+	/*
+	 * Saves the state of this stream and the streams below it, see
+	 * OpenPGPSnapshot
+	 */
+	public OpenPGPSnapshot snapshot() throws IOException {
+		throw new IOException("Stream does not support snapshots");
+	}
+
+	OpenPGPSnapshot save(OpenPGPSnapshot.Layer layer) throws IOException {
+		return save(layer, out);
+	}
+
+	// below is the stream that this one writes its packets to
+	OpenPGPSnapshot save(OpenPGPSnapshot.Layer layer, OutputStream below)
+			throws IOException {
+		OpenPGPSnapshot next = null;
+		if (layer != OpenPGPSnapshot.Layer.CIPHER) {
+			if (!(below instanceof OpenPGPFilterOutputStream)) {
+				throw new IOException(
+						"Only deflate compressed streams support snapshots");
+			}
+			next = ((OpenPGPFilterOutputStream) below).snapshot();
+		}
+
+		OpenPGPSnapshot snap = new OpenPGPSnapshot(layer, next);
+		snap.bufferSize = BUFFERSIZE;
+		snap.chunkSize = 1 << CHUNKPOWER;
+		snap.buf = buf.clone();
+		snap.pos = pos;
+		snap.started = started;
+		snap.flushMode = flushMode;
+		return snap;
+	}
+
+	/*
+	 * Writes len bytes as a sequence of partial packets, one for every bit
+	 * set in len. Starts with the biggest one, which is at least 512 bytes
+	 * for the first partial packet.
+	 */
+	protected void writePartial(byte[] b, int off, int len)
+			throws IOException {
+		for (int power = 30; power >= 0; power--) {
+			if ((len & (1 << power)) != 0) {
+				out.write(224 + power);
+				out.write(b, off, 1 << power);
+				off += 1 << power;
+			}
+		}
+		started = true;
 	}
 
 	protected static byte[] encodeLength(int len) {
@@ -79,7 +206,10 @@ public abstract class OpenPGPFilterOutputStream extends FilterOutputStream {
 
 	@Override
 	public void flush() throws IOException {
-		// cannot efficiently flush the buffer
+		if (flushMode && pos > 0 && (started || pos >= 512)) {
+			writePartial(buf, 0, pos);
+			pos = 0;
+		}
 		out.flush();
 	}
 
@@ -108,44 +238,23 @@ public abstract class OpenPGPFilterOutputStream extends FilterOutputStream {
 
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
-		// if inputbuf contains something append the new data
-		if (pos > 0) {
-			// if it fits into the buffer
-			if (len <= BUFFERSIZE - pos) {
-				// just copy it
-				System.arraycopy(b, off, buf, pos, len);
-				pos += len;
-				off += len;
-				len = 0;
-			} else {
-				// fill the buffer up
-				int tlen = BUFFERSIZE - pos;
-				System.arraycopy(b, off, buf, pos, tlen);
-				off += tlen;
-				len -= tlen;
-				pos = BUFFERSIZE;
-			}
+		while (pos + len >= BUFFERSIZE) {
+			int power = chunkPower((long) pos + len);
 
-			// if inputbuf is full write it out
-			if (pos == BUFFERSIZE) {
-				// set partial length
-				out.write(PARTIAL_BUFFERSIZE);
+			// set partial length
+			out.write(224 + power);
+			started = true;
 
-				out.write(buf, 0, BUFFERSIZE);
+			// write out the buffer and the rest directly from the input
+			int tlen = (1 << power) - pos;
+			if (pos > 0) {
+				out.write(buf, 0, pos);
 				pos = 0;
 			}
-		}
-
-		// deflate the input
-		while (len >= BUFFERSIZE) {
-			// set partial length
-			out.write(PARTIAL_BUFFERSIZE);
-
-			// add one bufferlen to the deflater
-			out.write(b, off, BUFFERSIZE);
+			out.write(b, off, tlen);
 
-			off += BUFFERSIZE;
-			len -= BUFFERSIZE;
+			off += tlen;
+			len -= tlen;
 		}
 
 		if (len > 0) {
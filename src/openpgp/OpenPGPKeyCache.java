@@ -0,0 +1,76 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Remembers the S2K output for the last few salts of a single password, so
+ * that messages with the same salt do not run the key derivation again.
+ * Not thread safe.
+ */
+class OpenPGPKeyCache {
+	private final int maxEntries;
+	private final Map<ByteBuffer, byte[]> keys;
+
+	OpenPGPKeyCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		keys = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> e) {
+				if (size() > OpenPGPKeyCache.this.maxEntries) {
+					Arrays.fill(e.getValue(), (byte) 0);
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	byte[] deriveKey(byte[] salt, int off, int c, byte[] pw)
+			throws IOException, NoSuchAlgorithmException {
+		byte[] id = new byte[9];
+		System.arraycopy(salt, off, id, 0, 8);
+		id[8] = (byte) c;
+		ByteBuffer k = ByteBuffer.wrap(id);
+
+		byte[] key = keys.get(k);
+		if (key == null) {
+			key = OpenPGPS2KScheduler.deriveKey(salt, off, c, pw);
+			// an evicted entry is zeroed, which could be this one
+			keys.put(k, key.clone());
+			return key;
+		}
+		return key.clone();
+	}
+
+	void clear() {
+		for (byte[] key : keys.values()) {
+			Arrays.fill(key, (byte) 0);
+		}
+		keys.clear();
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Derives keys for one password with fresh salts on a background thread,
+ * so that new output streams do not have to run the S2K themselves. The
+ * pool holds up to depth keys and is filled up again as soon as it drops
+ * to refill keys. If it is empty, the key is derived on the calling
+ * thread. The derivations go through OpenPGPS2KScheduler like all others.
+ *
+ * Thread safe. close() stops the thread and overwrites the password and
+ * the keys that were not used.
+ */
+public class OpenPGPKeyPool implements Closeable {
+	private final byte[] pw;
+	private final int depth;
+	private final int refill;
+	private final SecureRandom random;
+
+	// guarded by this
+	private final ArrayDeque<Entry> keys = new ArrayDeque<Entry>();
+	private boolean filling = true;
+	private boolean closed = false;
+
+	private final Thread thread;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	// a salt and the S2K output for it
+	static class Entry {
+		final byte[] salt;
+		final int codedCount;
+		final byte[] key;
+
+		Entry(byte[] salt, int codedCount, byte[] key) {
+			this.salt = salt;
+			this.codedCount = codedCount;
+			this.key = key;
+		}
+	}
+
+	public OpenPGPKeyPool(String password, int depth, int refill)
+			throws IOException {
+		if (depth < 1 || refill < 0 || refill >= depth) {
+			throw new IllegalArgumentException("Invalid pool size");
+		}
+		this.pw = password.getBytes("UTF-8");
+		this.depth = depth;
+		this.refill = refill;
+		random = OpenPGPCryptoPool.getRandom();
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				fill();
+			}
+		}, "OpenPGP key pool");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void fill() {
+		for (;;) {
+			byte[] p;
+			synchronized (this) {
+				while (!closed && !filling) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// only close() interrupts
+					}
+				}
+				if (closed)
+					return;
+				p = pw.clone();
+			}
+
+			Entry e;
+			try {
+				e = derive(p);
+			} catch (IOException ex) {
+				// interrupted or timed out in the scheduler, try again
+				continue;
+			} catch (NoSuchAlgorithmException ex) {
+				return;
+			}
+
+			synchronized (this) {
+				if (closed) {
+					Arrays.fill(e.key, (byte) 0);
+					return;
+				}
+				keys.add(e);
+				if (keys.size() >= depth) {
+					filling = false;
+				}
+			}
+		}
+	}
+
+	private Entry derive(byte[] p) throws IOException,
+			NoSuchAlgorithmException {
+		byte[] salt = new byte[8];
+		random.nextBytes(salt);
+		int c = OpenPGPS2K.DEFAULT_CODED_COUNT;
+		try {
+			return new Entry(salt, c, OpenPGPS2KScheduler.deriveKey(salt, 0,
+					c, p));
+		} finally {
+			Arrays.fill(p, (byte) 0);
+		}
+	}
+
+	/*
+	 * The caller has to overwrite the key after use
+	 */
+	Entry take() throws IOException, NoSuchAlgorithmException {
+		byte[] p;
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Key pool closed");
+			}
+			Entry e = keys.poll();
+			if (keys.size() <= refill && !filling) {
+				filling = true;
+				notifyAll();
+			}
+			if (e != null) {
+				hits.incrementAndGet();
+				return e;
+			}
+			p = pw.clone();
+		}
+		misses.incrementAndGet();
+		return derive(p);
+	}
+
+	// number of keys ready for use
+	public synchronized int size() {
+		return keys.size();
+	}
+
+	// streams that got a key from the pool
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	// streams that had to derive their key themselves
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			for (Entry e : keys) {
+				Arrays.fill(e.key, (byte) 0);
+			}
+			keys.clear();
+			Arrays.fill(pw, (byte) 0);
+			notifyAll();
+		}
+		// a derivation waiting in the scheduler gives up
+		thread.interrupt();
+	}
+}
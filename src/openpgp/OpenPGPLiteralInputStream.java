@@ -23,10 +23,16 @@ import java.io.InputStream;
 
 public class OpenPGPLiteralInputStream extends OpenPGPFilterInputStream {
 	protected String filename;
+	private final OpenPGPDecompressionLimits.Budget budget = new OpenPGPDecompressionLimits.Budget();
 
 	public OpenPGPLiteralInputStream(InputStream in, int buffersize)
 			throws IOException {
-		super(in, buffersize);
+		this(in, buffersize, null);
+	}
+
+	OpenPGPLiteralInputStream(InputStream in, int buffersize,
+			OpenPGPBuffers buffers) throws IOException {
+		super(in, buffersize, buffers, OpenPGPBuffers.LITERAL);
 
 		if (readBlocking(buf, 0, 2) != 2) {
 			throw new IOException("Not enough input");
@@ -84,7 +90,55 @@ public class OpenPGPLiteralInputStream extends OpenPGPFilterInputStream {
 		inputLen = 0;
 	}
 
+	OpenPGPLiteralInputStream(InputStream in, OpenPGPSnapshot snap) {
+		super(in, snap);
+	}
+
+	@Override
+	public OpenPGPSnapshot snapshot() throws IOException {
+		return save(OpenPGPSnapshot.Layer.LITERAL);
+	}
+
 	public String getFilename() {
 		return filename;
 	}
+
+	@Override
+	protected int fill() throws IOException {
+		int n = super.fill();
+		if (n > 0 && budget.isSizeLimited()) {
+			budget.addPlaintext(n);
+		}
+		if (n > 0 && progress != null) {
+			progress.plaintext += n;
+			progress.update();
+		}
+		return n;
+	}
+
+	/*
+	 * The decompressor can need input after the last byte of the literal
+	 * packet to reach the end of its stream, like the code that ends the
+	 * last deflate block. The stream below is read to its end, so that
+	 * every layer can check that it is complete.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			fill();
+			if (len == -1 && (inputLen > 0 || in.read(buf, 0, buf.length) != -1)) {
+				throw new IOException("Data after the literal packet");
+			}
+		} catch (IOException e) {
+			try {
+				in.close();
+			} catch (IOException e2) {
+			}
+			throw e;
+		}
+		super.close();
+		if (progress != null) {
+			progress.setPhase(OpenPGPProgressListener.Phase.DONE);
+		}
+	}
 }
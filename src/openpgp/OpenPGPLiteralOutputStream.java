@@ -29,7 +29,12 @@ public class OpenPGPLiteralOutputStream extends OpenPGPFilterOutputStream {
 
 	public OpenPGPLiteralOutputStream(OutputStream os, int buffersize)
 			throws IOException {
-		super(os, buffersize);
+		this(os, buffersize, buffersize);
+	}
+
+	public OpenPGPLiteralOutputStream(OutputStream os, int buffersize,
+			int chunksize) throws IOException {
+		super(os, buffersize, chunksize);
 		// create a literal data packet
 		out.write(0xCB);
 		// binary packet
@@ -40,4 +45,41 @@ public class OpenPGPLiteralOutputStream extends OpenPGPFilterOutputStream {
 		 */
 		pos = 6;
 	}
+
+	OpenPGPLiteralOutputStream(OutputStream os, OpenPGPSnapshot snap) {
+		super(os, snap);
+	}
+
+	@Override
+	public OpenPGPSnapshot snapshot() throws IOException {
+		if (!(out instanceof OpenPGPCompressionCodecs.DeflateOutputStream)) {
+			return save(OpenPGPSnapshot.Layer.LITERAL);
+		}
+
+		// the compressed data so far must not be needed by the rest
+		OpenPGPCompressionCodecs.DeflateOutputStream d = (OpenPGPCompressionCodecs.DeflateOutputStream) out;
+		d.fullFlush();
+		OpenPGPSnapshot snap = save(OpenPGPSnapshot.Layer.LITERAL,
+				d.getTarget());
+		snap.deflate = d.getCompression();
+		snap.adler = d.getAdler();
+		return snap;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		super.write(b, off, len);
+		if (progress != null) {
+			progress.plaintext += len;
+			progress.update();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		if (progress != null) {
+			progress.setPhase(OpenPGPProgressListener.Phase.DONE);
+		}
+	}
 }
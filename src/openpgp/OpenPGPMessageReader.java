@@ -0,0 +1,299 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Reads a sequence of binary messages, that were written back to back into
+ * the same stream. Every message gets its own plaintext stream. Nothing
+ * after the end of a message is consumed, so the next message or any other
+ * data can follow.
+ *
+ * OpenPGPMessageReader r = new OpenPGPMessageReader(is, "password");
+ * while (r.hasNext()) {
+ *     InputStream m = r.next();
+ *     ...
+ *     m.close();
+ * }
+ *
+ * ASCII armored input is detected like in OpenPGPFactory.getInputStream().
+ * An armor block can hold several messages and several armor blocks can
+ * follow each other.
+ *
+ * The S2K output is cached for the last few salts, so messages written with
+ * the same salt are cheap to open, and the buffers of a message are reused
+ * for the next one. After an exception the position in the underlying
+ * stream is undefined.
+ */
+public class OpenPGPMessageReader implements Closeable {
+	private static final int CACHED_KEYS = 16;
+
+	private final Source raw;
+	private final Source source;
+	private final String password;
+	private final int bufsize;
+	private final OpenPGPKeyCache keys = new OpenPGPKeyCache(CACHED_KEYS);
+	private final OpenPGPBuffers buffers = new OpenPGPBuffers();
+
+	// null if the current input is not armored
+	private OpenPGPArmorInputStream armor;
+	private boolean started = false;
+
+	private OpenPGPCipherInputStream cipher;
+	private Message current;
+	private byte[] skipBuf;
+
+	public OpenPGPMessageReader(InputStream is, String password) {
+		this(is, password, 8 * 1024);
+	}
+
+	public OpenPGPMessageReader(InputStream is, String password, int bufsize) {
+		this.raw = new Source(is);
+		this.source = new Source(raw);
+		this.password = password;
+		this.bufsize = bufsize;
+	}
+
+	/*
+	 * Finishes the current message, which also checks its modification
+	 * detection code, and tests if there is another one
+	 */
+	public boolean hasNext() throws IOException {
+		finishCurrent();
+		if (!started) {
+			started = true;
+			if (!nextInput())
+				return false;
+		}
+		while (source.peek() == -1) {
+			if (armor == null)
+				return false;
+
+			// another armor block or binary data may follow the end line
+			raw.unread(armor.getRemainingInput());
+			int c;
+			while ((c = raw.read()) != -1 && c != '\n')
+				;
+			if (!nextInput())
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Detects if the raw input continues armored, after skipping the blank
+	 * lines in between. false at the end of the input.
+	 */
+	private boolean nextInput() throws IOException {
+		int first;
+		while ((first = raw.peek()) == '\r' || first == '\n' || first == ' '
+				|| first == '\t') {
+			raw.read();
+		}
+		if (first == -1) {
+			armor = null;
+			return false;
+		}
+
+		if (OpenPGPArmorInputStream.checkStreamType(first)) {
+			armor = new OpenPGPArmorInputStream(raw, bufsize);
+			source.setInput(armor);
+		} else {
+			armor = null;
+			source.setInput(raw);
+		}
+		return true;
+	}
+
+	/*
+	 * The previous message is finished, if it was not closed yet. Data of
+	 * the previous message, that was not read, is discarded.
+	 */
+	public InputStream next() throws IOException, NoSuchAlgorithmException,
+			WrongPasswordException {
+		if (!hasNext()) {
+			throw new IOException("No more messages");
+		}
+
+		cipher = new OpenPGPCipherInputStream(source, password, bufsize,
+				false, keys, buffers);
+		try {
+			current = new Message(OpenPGPFactory.getPlaintextStream(cipher,
+					bufsize, buffers));
+		} catch (IOException e) {
+			cipher = null;
+			throw e;
+		}
+		return current;
+	}
+
+	// filename of the current message
+	public String getFilename() {
+		return current == null ? null : current.filename;
+	}
+
+	private void finishCurrent() throws IOException {
+		if (current != null) {
+			current.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finishCurrent();
+		} finally {
+			keys.clear();
+			buffers.clear();
+			raw.closeSource();
+		}
+	}
+
+	/*
+	 * Plaintext of a single message. Closing it reads the rest of the
+	 * message and gives the bytes that were read past its end back to the
+	 * source.
+	 */
+	private class Message extends FilterInputStream {
+		private final String filename;
+		private boolean closed = false;
+
+		Message(OpenPGPLiteralInputStream in) {
+			super(in);
+			filename = in.getFilename();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			current = null;
+
+			if (skipBuf == null) {
+				skipBuf = new byte[bufsize];
+			}
+			try {
+				while (in.read(skipBuf) != -1)
+					;
+				in.close();
+			} finally {
+				source.unread(cipher.getRemainingInput());
+				cipher = null;
+			}
+		}
+	}
+
+	/*
+	 * The underlying stream with the bytes read after the end of the last
+	 * message put back in front. Closing it does not close the underlying
+	 * stream.
+	 */
+	private static class Source extends FilterInputStream {
+		private byte[] pending = new byte[0];
+		private int pendingPos = 0;
+		private int pendingLen = 0;
+
+		Source(InputStream in) {
+			super(in);
+		}
+
+		void setInput(InputStream in) {
+			this.in = in;
+		}
+
+		void unread(byte[] b) {
+			if (b.length == 0)
+				return;
+
+			if (pending.length < b.length + pendingLen) {
+				byte[] t = new byte[b.length + pendingLen];
+				System.arraycopy(pending, pendingPos, t, b.length, pendingLen);
+				pending = t;
+			} else {
+				System.arraycopy(pending, pendingPos, pending, b.length,
+						pendingLen);
+			}
+			System.arraycopy(b, 0, pending, 0, b.length);
+			pendingPos = 0;
+			pendingLen += b.length;
+		}
+
+		int peek() throws IOException {
+			if (pendingLen == 0) {
+				int c = in.read();
+				if (c == -1)
+					return -1;
+				unread(new byte[] { (byte) c });
+			}
+			return pending[pendingPos] & 0xFF;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (pendingLen > 0) {
+				pendingLen--;
+				return pending[pendingPos++] & 0xFF;
+			}
+			return in.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (pendingLen > 0) {
+				int n = Math.min(len, pendingLen);
+				System.arraycopy(pending, pendingPos, b, off, n);
+				pendingPos += n;
+				pendingLen -= n;
+				return n;
+			}
+			return in.read(b, off, len);
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] b = new byte[(int) Math.min(n, 512)];
+			int r = read(b, 0, b.length);
+			return r < 0 ? 0 : r;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return pendingLen + in.available();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		void closeSource() throws IOException {
+			in.close();
+		}
+	}
+}
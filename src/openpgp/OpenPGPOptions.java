@@ -0,0 +1,154 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import javax.crypto.SecretKey;
+
+/*
+ * Settings for OpenPGPFactory.getInputStream() and getOutputStream(). The
+ * constructor takes the key material, the rest has defaults:
+ *
+ * OpenPGPFactory.getOutputStream(os, new OpenPGPOptions("password")
+ *         .setCompression(OpenPGPCompression.NONE).setBufferSize(65536)
+ *         .setSessionKey(true));
+ *
+ * The setters return this. The same options can be used for several
+ * streams, unless they hold an OpenPGPProgress.
+ */
+public class OpenPGPOptions {
+	// exactly one of them is set
+	final String password;
+	final String[] passwords;
+	final SecretKey key;
+	final OpenPGPKeyPool keys;
+
+	OpenPGPCompression compression = OpenPGPCompression.ZLIB;
+	int bufferSize = 8 * 1024;
+	int chunkSize = 0;
+	boolean sessionKey = false;
+	boolean flushMode = false;
+	boolean pipelined = false;
+	OpenPGPProgress progress;
+
+	public OpenPGPOptions(String password) {
+		this(password, null, null, null);
+	}
+
+	/*
+	 * For a single output, every password can decrypt the message on its
+	 * own and a random session key is always used. For several outputs,
+	 * every output gets the password at the same index.
+	 */
+	public OpenPGPOptions(String... passwords) {
+		this(null, passwords, null, null);
+	}
+
+	/*
+	 * A 256 bit AES key, for example from a key management service, is used
+	 * instead of a password, so no key derivation takes place
+	 */
+	public OpenPGPOptions(SecretKey key) {
+		this(null, null, key, null);
+	}
+
+	/*
+	 * Output only, takes a key that was derived in advance for a fresh salt
+	 */
+	public OpenPGPOptions(OpenPGPKeyPool keys) {
+		this(null, null, null, keys);
+	}
+
+	private OpenPGPOptions(String password, String[] passwords,
+			SecretKey key, OpenPGPKeyPool keys) {
+		if (password == null && passwords == null && key == null
+				&& keys == null) {
+			throw new IllegalArgumentException("No password given");
+		}
+		this.password = password;
+		this.passwords = passwords;
+		this.key = key;
+		this.keys = keys;
+	}
+
+	// output only, the default is ZLIB
+	public OpenPGPOptions setCompression(OpenPGPCompression compression) {
+		this.compression = compression;
+		return this;
+	}
+
+	// size of the buffers of every layer, 8K by default
+	public OpenPGPOptions setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+		return this;
+	}
+
+	/*
+	 * Output only, the maximum size of a partial packet. It can be much
+	 * bigger than the buffer size, which determines the memory usage. The
+	 * default is the buffer size.
+	 */
+	public OpenPGPOptions setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	/*
+	 * Output only. sessionKey=true encrypts the data with a random key, so
+	 * that the password can be changed later with OpenPGPRekey.
+	 */
+	public OpenPGPOptions setSessionKey(boolean sessionKey) {
+		this.sessionKey = sessionKey;
+		return this;
+	}
+
+	/*
+	 * Output only. flushMode=true makes flush() write out everything
+	 * written so far as valid OpenPGP data, which is needed for interactive
+	 * streams like sockets. Deflate uses a sync flush, which costs a few
+	 * bytes and some compression each time.
+	 */
+	public OpenPGPOptions setFlushMode(boolean flushMode) {
+		this.flushMode = flushMode;
+		return this;
+	}
+
+	/*
+	 * Input only. pipelined=true reads the input, decrypts, hashes and
+	 * decompresses on separate threads, which are connected by a few
+	 * buffers of the buffer size.
+	 */
+	public OpenPGPOptions setPipelined(boolean pipelined) {
+		this.pipelined = pipelined;
+		return this;
+	}
+
+	/*
+	 * progress receives the phases and the byte counts of every layer, see
+	 * OpenPGPProgress. For several outputs the ciphertext and packet counts
+	 * are the sums over all of them.
+	 */
+	public OpenPGPOptions setProgress(OpenPGPProgress progress) {
+		this.progress = progress;
+		return this;
+	}
+
+	int getChunkSize() {
+		return chunkSize > 0 ? chunkSize : bufferSize;
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/*
+ * Push based parser for a single packet. It never blocks, the input is
+ * handed over in arbitrary pieces and the body is passed on without the
+ * packet header and partial length headers.
+ */
+class OpenPGPPacketReader {
+	interface Body {
+		void write(byte[] b, int off, int len) throws IOException;
+	}
+
+	private static final int TAG = 0;
+	private static final int LENGTH = 1;
+	private static final int BODY = 2;
+	private static final int DONE = 3;
+
+	private final Body body;
+	private int state = TAG;
+
+	private int tag = -1;
+	private boolean oldFormat;
+
+	private byte[] lenBuf = new byte[5];
+	private int lenPos = 0;
+	private int lenSpace = 0;
+
+	private long packetLen = 0;
+	private boolean partial = false;
+	private boolean first = true;
+	private boolean indeterminate = false;
+
+	OpenPGPPacketReader(Body body) {
+		this.body = body;
+	}
+
+	int getTag() {
+		return tag;
+	}
+
+	boolean isDone() {
+		return state == DONE;
+	}
+
+	/*
+	 * Returns the number of bytes consumed, which is less than len only if
+	 * the packet ended
+	 */
+	int write(byte[] b, int off, int len) throws IOException {
+		int start = off;
+		int end = off + len;
+
+		while (off < end && state != DONE) {
+			switch (state) {
+			case TAG:
+				readTag(b[off++] & 0xFF);
+				break;
+			case LENGTH:
+				lenBuf[lenPos++] = b[off++];
+				if (lenPos == 1 && !oldFormat) {
+					int c = lenBuf[0] & 0xFF;
+					if (c >= 224 && c < 255) {
+						lenSpace = 1;
+					} else {
+						lenSpace = OpenPGPFilterInputStream
+								.decodeLengthSpace(c);
+					}
+				}
+				if (lenPos == lenSpace) {
+					decodeLength();
+				}
+				break;
+			case BODY:
+				int n = end - off;
+				if (!indeterminate && packetLen < n)
+					n = (int) packetLen;
+				body.write(b, off, n);
+				off += n;
+				if (!indeterminate) {
+					packetLen -= n;
+					if (packetLen == 0)
+						nextChunk();
+				}
+				break;
+			}
+		}
+
+		return off - start;
+	}
+
+	/*
+	 * Signals the end of the input
+	 */
+	void end() throws IOException {
+		if (state != DONE && !(state == BODY && indeterminate)) {
+			throw new EOFException("Unexpected end of stream");
+		}
+		state = DONE;
+	}
+
+	private void readTag(int header) throws IOException {
+		if ((header & 0x80) == 0) {
+			throw new IOException("Wrong file format");
+		}
+
+		oldFormat = (header & 0x40) == 0;
+		if (oldFormat) {
+			tag = (header >> 2) & 0x0F;
+			lenSpace = OpenPGPFilterInputStream
+					.decodeLengthSpaceOld((byte) header);
+			if (lenSpace == 0) {
+				// undetermined size
+				indeterminate = true;
+				state = BODY;
+				return;
+			}
+		} else {
+			tag = header & 0x3F;
+		}
+
+		lenPos = 0;
+		state = LENGTH;
+	}
+
+	private void decodeLength() throws IOException {
+		int c = lenBuf[0] & 0xFF;
+		if (oldFormat) {
+			packetLen = OpenPGPFilterInputStream.decodeLengthOld(lenBuf, 0,
+					lenSpace);
+			partial = false;
+		} else if (c >= 224 && c < 255) {
+			packetLen = 1 << (c & 0x1F);
+			if (first && packetLen < 512) {
+				throw new IOException(
+						"First packet must be at least 512 bytes long");
+			}
+			partial = true;
+		} else {
+			packetLen = OpenPGPFilterInputStream.decodeLength(lenBuf, 0,
+					lenSpace);
+			partial = false;
+		}
+		first = false;
+
+		state = BODY;
+		if (packetLen == 0)
+			nextChunk();
+	}
+
+	private void nextChunk() {
+		if (partial) {
+			lenPos = 0;
+			state = LENGTH;
+		} else {
+			state = DONE;
+		}
+	}
+}
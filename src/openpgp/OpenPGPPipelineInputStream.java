@@ -0,0 +1,259 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Reads the source stream on a separate thread. The data is passed on in
+ * a fixed number of buffers, so a slow consumer blocks the thread instead
+ * of using more memory. Exceptions are handed over in order, after all
+ * data read before them, so an error is always reported before the end of
+ * the stream.
+ *
+ * The threads come from a shared pool. A message stacks up to three of
+ * these streams, each waiting for the one below, so a busy pool cannot
+ * make a stream wait for a free thread. It starts an extra thread
+ * instead, which is not kept afterwards.
+ */
+class OpenPGPPipelineInputStream extends InputStream {
+	// idle threads are kept for reuse up to this number
+	private static final int MAX_POOLED = 64;
+
+	private static final ThreadFactory threads = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "OpenPGP pipeline");
+			t.setDaemon(true);
+			return t;
+		}
+	};
+
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			0, MAX_POOLED, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), threads,
+			new RejectedExecutionHandler() {
+				@Override
+				public void rejectedExecution(Runnable r,
+						ThreadPoolExecutor e) {
+					threads.newThread(r).start();
+				}
+			});
+
+	private static class Chunk {
+		byte[] b;
+		int len;
+		boolean eof;
+		IOException error;
+
+		Chunk(int size) {
+			b = new byte[size];
+		}
+	}
+
+	private final InputStream source;
+	private final BlockingQueue<Chunk> full;
+	private final BlockingQueue<Chunk> free;
+	private final String name;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	// the thread that runs produce(), guarded by free
+	private Thread worker;
+
+	private Chunk current;
+	private int pos = 0;
+	private boolean finished = false;
+	private volatile boolean closed = false;
+	private volatile boolean done = false;
+
+	OpenPGPPipelineInputStream(InputStream source, int bufsize, int depth,
+			String name) {
+		this.source = source;
+		full = new ArrayBlockingQueue<Chunk>(depth);
+		free = new ArrayBlockingQueue<Chunk>(depth);
+		for (int i = 0; i < depth; i++) {
+			free.add(new Chunk(bufsize));
+		}
+
+		this.name = name;
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				produce();
+			}
+		});
+	}
+
+	private void produce() {
+		Thread t = Thread.currentThread();
+		String poolName = t.getName();
+		synchronized (free) {
+			if (closed) {
+				stopped.countDown();
+				return;
+			}
+			worker = t;
+		}
+		t.setName("OpenPGP " + name);
+
+		try {
+			boolean eof = false;
+			while (!eof && !closed) {
+				Chunk c = free.take();
+				c.len = 0;
+				c.error = null;
+
+				// fill the buffer up to reduce the handovers
+				while (c.len < c.b.length) {
+					int n = source.read(c.b, c.len, c.b.length - c.len);
+					if (n < 0) {
+						eof = true;
+						break;
+					}
+					c.len += n;
+				}
+				c.eof = eof;
+				full.put(c);
+			}
+		} catch (InterruptedException e) {
+			// closed by the consumer
+		} catch (IOException | RuntimeException e) {
+			Chunk c = new Chunk(0);
+			c.error = e instanceof IOException ? (IOException) e
+					: new IOException(e);
+			full.offer(c);
+		} finally {
+			done = true;
+			synchronized (free) {
+				worker = null;
+				// an interrupt from close() must not reach the next task
+				Thread.interrupted();
+			}
+			t.setName(poolName);
+			stopped.countDown();
+		}
+	}
+
+	private boolean next() throws IOException {
+		if (current != null) {
+			if (current.eof) {
+				finished = true;
+				return false;
+			}
+			free.add(current);
+			current = null;
+		}
+
+		try {
+			current = full.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+		pos = 0;
+
+		if (current.error != null) {
+			IOException e = current.error;
+			current = null;
+			finished = true;
+			throw e;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (b == null) {
+			throw new NullPointerException();
+		} else if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		} else if (len == 0) {
+			return 0;
+		}
+
+		while (current == null || pos == current.len) {
+			if (finished || !next())
+				return -1;
+		}
+
+		int l = Math.min(len, current.len - pos);
+		System.arraycopy(current.b, pos, b, off, l);
+		pos += l;
+		return l;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current == null ? 0 : current.len - pos;
+	}
+
+	/*
+	 * The source is always closed before this returns. If it was read up to
+	 * its end, errors of its close are thrown, so that its checks take
+	 * place. Otherwise the thread is stopped first, which may have to wait
+	 * for a read of the source in progress, and errors are ignored.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+
+		boolean early;
+		synchronized (free) {
+			closed = true;
+			early = !done;
+			if (worker != null) {
+				worker.interrupt();
+			}
+		}
+
+		try {
+			stopped.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while stopping the pipeline");
+		}
+
+		if (!early) {
+			source.close();
+			return;
+		}
+		try {
+			source.close();
+		} catch (IOException e) {
+		}
+	}
+}
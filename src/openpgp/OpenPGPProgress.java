@@ -0,0 +1,109 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.util.concurrent.TimeUnit;
+
+import openpgp.OpenPGPProgressListener.Phase;
+
+/*
+ * Byte counts of every layer of one stream created by OpenPGPFactory. They
+ * can be polled, or passed to a listener at most once per interval. Each
+ * counter is only written by the thread of its layer. Streams without a
+ * progress only pay for a null check per buffer.
+ */
+public class OpenPGPProgress {
+	private final OpenPGPProgressListener listener;
+	private final long interval;
+	private final long start = System.nanoTime();
+	private long next = start;
+
+	private volatile Phase phase;
+	volatile long plaintext;
+	volatile long compressed;
+	volatile long ciphertext;
+	volatile long packets;
+
+	public OpenPGPProgress() {
+		this(null, 0);
+	}
+
+	public OpenPGPProgress(OpenPGPProgressListener listener, long intervalMillis) {
+		if (intervalMillis < 0) {
+			throw new IllegalArgumentException("Invalid interval");
+		}
+		this.listener = listener;
+		this.interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+	}
+
+	public Phase getPhase() {
+		return phase;
+	}
+
+	// data written to or read from the literal packet
+	public long getPlaintextBytes() {
+		return plaintext;
+	}
+
+	// data written to or read from the compressed packet
+	public long getCompressedBytes() {
+		return compressed;
+	}
+
+	// the encrypted message including its headers
+	public long getCiphertextBytes() {
+		return ciphertext;
+	}
+
+	// partial and final packets of the encrypted data
+	public long getPackets() {
+		return packets;
+	}
+
+	public long getElapsedNanos() {
+		return System.nanoTime() - start;
+	}
+
+	void setPhase(Phase p) {
+		synchronized (this) {
+			if (phase == p)
+				return;
+			phase = p;
+			if (listener == null)
+				return;
+			listener.phaseChanged(p, this);
+			if (p == Phase.DONE) {
+				listener.progress(this);
+			}
+		}
+	}
+
+	// called by the top layer after every buffer
+	void update() {
+		if (listener == null)
+			return;
+		long now = System.nanoTime();
+		synchronized (this) {
+			if (now - next < 0)
+				return;
+			next = now + interval;
+			listener.progress(this);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+/*
+ * Callbacks of an OpenPGPProgress. They can come from the threads of a
+ * pipelined stream, but never at the same time.
+ */
+public interface OpenPGPProgressListener {
+	/*
+	 * For output MDC_CHECK means that the MDC is computed and written on
+	 * close
+	 */
+	public enum Phase {
+		KEY_DERIVATION, STREAMING, MDC_CHECK, DONE
+	}
+
+	void phaseChanged(Phase phase, OpenPGPProgress progress);
+
+	// at most once per interval, and once more when the stream is done
+	void progress(OpenPGPProgress progress);
+}
@@ -0,0 +1,492 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Non-blocking counterpart of OpenPGPFactory.getInputStream(). The encrypted
+ * input is handed over in arbitrary pieces as it arrives and the decrypted
+ * data, that is ready, is returned immediately. It can be used inside an
+ * event loop without a thread per connection.
+ *
+ * The key is derived on the calling thread when the encrypted data starts.
+ * It does not wait in the queue of the OpenPGPS2KScheduler, so an event
+ * loop is never blocked by other derivations, but the S2K itself takes a
+ * core for up to a few hundred milliseconds. Only the count limit of the
+ * scheduler applies.
+ *
+ * Like the streams, the data is returned before the modification detection
+ * code at the end is checked. Only after finish() returns without an
+ * exception, the data is known to be authentic.
+ */
+public class OpenPGPPushDecoder {
+	private final byte[] pw;
+	private MessageDigest hash;
+
+	private List<OpenPGPSessionKeyPacket> keyPackets = new ArrayList<OpenPGPSessionKeyPacket>();
+	private ByteArrayOutputStream keyPacket = new ByteArrayOutputStream();
+
+	private OpenPGPPacketReader outer;
+	private Cipher cipher;
+	private boolean versionRead = false;
+	private boolean finished = false;
+	private boolean released = false;
+
+	// first 18 encrypted bytes needed for the password check
+	private byte[] prefix = new byte[18];
+	private int prefixLen = 0;
+
+	// the last 22 decrypted bytes could be the modification detection code
+	private byte[] tail = new byte[22];
+	private int tailLen = 0;
+
+	private OpenPGPPacketReader inner;
+	private Inflater inflater;
+	private boolean algorithmRead = false;
+	private byte[] inflated = new byte[8192];
+	private long compressedLen = 0;
+	private OpenPGPDecompressionLimits.Budget budget = new OpenPGPDecompressionLimits.Budget();
+
+	private OpenPGPPacketReader literal;
+	// format, filename length, filename, date
+	private byte[] literalHeader = new byte[6 + 255];
+	private int literalHeaderLen = 0;
+	private String filename;
+
+	private ByteArrayOutputStream res = new ByteArrayOutputStream();
+
+	public OpenPGPPushDecoder(String password) throws IOException,
+			NoSuchAlgorithmException {
+		pw = password.getBytes("UTF-8");
+		hash = OpenPGPCryptoPool.getSHA1();
+	}
+
+	/*
+	 * Returns the decrypted data that is ready, possibly an empty array
+	 */
+	public byte[] update(byte[] b, int off, int len) throws IOException,
+			WrongPasswordException, NoSuchAlgorithmException {
+		if (released && !finished) {
+			throw new IOException("Decoder already closed");
+		}
+		try {
+			int end = off + len;
+			while (off < end) {
+				if (finished) {
+					throw new IOException("Data after the end of the message");
+				}
+				if (outer == null) {
+					outer = new OpenPGPPacketReader(outerBody);
+				}
+				off += outer.write(b, off, end - off);
+				if (outer.isDone()) {
+					endOuterPacket();
+				}
+			}
+		} catch (WrappedException e) {
+			release();
+			if (e.getCause() instanceof WrongPasswordException)
+				throw (WrongPasswordException) e.getCause();
+			throw (NoSuchAlgorithmException) e.getCause();
+		} catch (IOException e) {
+			release();
+			throw e;
+		}
+
+		byte[] r = res.toByteArray();
+		res.reset();
+		return r;
+	}
+
+	public byte[] update(byte[] b) throws IOException,
+			WrongPasswordException, NoSuchAlgorithmException {
+		return update(b, 0, b.length);
+	}
+
+	/*
+	 * Has to be called at the end of the input. Throws an exception if the
+	 * message is incomplete.
+	 */
+	public void finish() throws IOException {
+		if (!finished) {
+			release();
+			throw new EOFException("Unexpected end of stream");
+		}
+	}
+
+	/*
+	 * Gives up on an unfinished message. The pooled cipher and hash are
+	 * released, which also happens after the end of the message and after
+	 * an error.
+	 */
+	public void close() {
+		release();
+	}
+
+	private void release() {
+		if (released)
+			return;
+		released = true;
+
+		if (cipher != null) {
+			OpenPGPCryptoPool.release(cipher);
+			cipher = null;
+		}
+		OpenPGPCryptoPool.releaseSHA1(hash);
+		hash = null;
+		if (inflater != null) {
+			inflater.end();
+		}
+		Arrays.fill(pw, (byte) 0);
+	}
+
+	/*
+	 * true after the whole message was processed and the modification
+	 * detection code was verified
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	/*
+	 * checked exceptions, that cannot be thrown through the Body interface
+	 */
+	@SuppressWarnings("serial")
+	private static class WrappedException extends IOException {
+		WrappedException(Exception e) {
+			super(e);
+		}
+	}
+
+	private final OpenPGPPacketReader.Body outerBody = new OpenPGPPacketReader.Body() {
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			switch (outer.getTag()) {
+			case 3:
+				if (keyPacket.size() + len > 13 + OpenPGPSessionKeyPacket.ENCRYPTED_KEY_LENGTH) {
+					throw new IOException("Wrong file format");
+				}
+				keyPacket.write(b, off, len);
+				break;
+			case 18:
+				if (keyPackets.isEmpty()) {
+					throw new IOException("Wrong file format");
+				}
+				encrypted(b, off, len);
+				break;
+			default:
+				throw new IOException("Wrong file format or unsupported");
+			}
+		}
+	};
+
+	private void endOuterPacket() throws IOException {
+		if (outer.getTag() == 3) {
+			byte[] p = keyPacket.toByteArray();
+			keyPacket.reset();
+			try {
+				keyPackets.add(OpenPGPSessionKeyPacket.parse(p, 0, p.length));
+			} catch (NoSuchAlgorithmException e) {
+				throw new WrappedException(e);
+			}
+			outer = null;
+			return;
+		}
+
+		if (cipher == null) {
+			throw new EOFException("Not enough input");
+		}
+
+		try {
+			decrypted(cipher.doFinal());
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+		checkHash();
+		finished = true;
+		release();
+	}
+
+	private void encrypted(byte[] b, int off, int len) throws IOException {
+		if (!versionRead) {
+			if (b[off] != 1) {
+				throw new IOException("Wrong packet version");
+			}
+			versionRead = true;
+			off++;
+			len--;
+		}
+
+		if (cipher == null) {
+			int n = Math.min(len, 18 - prefixLen);
+			System.arraycopy(b, off, prefix, prefixLen, n);
+			prefixLen += n;
+			off += n;
+			len -= n;
+			if (prefixLen < 18)
+				return;
+
+			initCipher();
+			decrypted(cipher.update(prefix, 0, 18));
+		}
+
+		if (len > 0) {
+			decrypted(cipher.update(b, off, len));
+		}
+	}
+
+	private void initCipher() throws IOException {
+		Cipher c = null;
+		try {
+			for (OpenPGPSessionKeyPacket p : keyPackets) {
+				byte[] key = p.decryptKeyUnqueued(pw);
+				if (key == null)
+					continue;
+
+				// iv is initialized to all 0x00 by default
+				SecretKeySpec secret = new SecretKeySpec(key, "AES");
+				Arrays.fill(key, (byte) 0);
+				if (c == null) {
+					c = OpenPGPCryptoPool.getCipher();
+				}
+				c.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(
+						new byte[16]));
+				byte[] check = c.doFinal(prefix);
+				if (check[14] == check[16] && check[15] == check[17]) {
+					c.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(
+							new byte[16]));
+					cipher = c;
+					return;
+				}
+			}
+		} catch (NoSuchAlgorithmException e) {
+			throw new WrappedException(e);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		} finally {
+			// the cipher of a failed check goes back to the pool
+			if (cipher == null && c != null) {
+				OpenPGPCryptoPool.release(c);
+			}
+		}
+
+		throw new WrappedException(new WrongPasswordException(
+				"Decryption check failed"));
+	}
+
+	private void decrypted(byte[] b) throws IOException {
+		if (b == null || b.length == 0)
+			return;
+
+		// keep back the last 22 bytes
+		int total = tailLen + b.length;
+		if (total <= 22) {
+			System.arraycopy(b, 0, tail, tailLen, b.length);
+			tailLen = total;
+			return;
+		}
+
+		int emit = total - 22;
+		int fromTail = Math.min(emit, tailLen);
+		if (fromTail > 0) {
+			plain(tail, 0, fromTail);
+			System.arraycopy(tail, fromTail, tail, 0, tailLen - fromTail);
+			tailLen -= fromTail;
+		}
+		int fromB = emit - fromTail;
+		if (fromB > 0) {
+			plain(b, 0, fromB);
+		}
+		System.arraycopy(b, fromB, tail, tailLen, b.length - fromB);
+		tailLen = 22;
+	}
+
+	private void checkHash() throws IOException {
+		if (tailLen < 22 || tail[0] != (byte) 0xD3 || tail[1] != (byte) 0x14)
+			throw new InvalidChecksumException("Error in stream");
+
+		hash.update(tail, 0, 2);
+		if (!Arrays.equals(hash.digest(), Arrays.copyOfRange(tail, 2, 22)))
+			throw new InvalidChecksumException("Invalid checksum at the end");
+
+		if (inner == null) {
+			throw new EOFException("Unexpected end of stream");
+		}
+		inner.end();
+		if (inflater != null && !inflater.finished()) {
+			throw new EOFException("Unexpected end of compressed stream");
+		}
+		if (literal == null) {
+			throw new EOFException("Unexpected end of stream");
+		}
+		literal.end();
+	}
+
+	/*
+	 * decrypted data without the prefix and the modification detection code
+	 */
+	private void plain(byte[] b, int off, int len) throws IOException {
+		hash.update(b, off, len);
+
+		// skip the 18 bytes of the prefix
+		if (prefixLen > 0) {
+			int n = Math.min(len, prefixLen);
+			prefixLen -= n;
+			off += n;
+			len -= n;
+		}
+
+		while (len > 0) {
+			if (inner == null) {
+				inner = new OpenPGPPacketReader(innerBody);
+			} else if (inner.isDone()) {
+				throw new IOException("Error in datastream");
+			}
+			int n = inner.write(b, off, len);
+			off += n;
+			len -= n;
+		}
+	}
+
+	private final OpenPGPPacketReader.Body innerBody = new OpenPGPPacketReader.Body() {
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			switch (inner.getTag()) {
+			case 8:
+				compressed(b, off, len);
+				break;
+			case 11:
+				literal(b, off, len);
+				break;
+			default:
+				throw new IOException("No Literal packet found");
+			}
+		}
+	};
+
+	private void compressed(byte[] b, int off, int len) throws IOException {
+		if (!algorithmRead) {
+			switch (b[off]) {
+			case 0:
+				// the body is the literal packet itself
+				break;
+			case 1:
+				inflater = new Inflater(true);
+				break;
+			case 2:
+				inflater = new Inflater();
+				break;
+			default:
+				throw new IOException("Unsupported compression algorithm");
+			}
+			algorithmRead = true;
+			off++;
+			len--;
+		}
+
+		if (len == 0)
+			return;
+		if (inflater == null) {
+			literal(b, off, len);
+			return;
+		}
+		if (inflater.finished()) {
+			throw new IOException("Data after the end of the compressed stream");
+		}
+
+		compressedLen += len;
+		inflater.setInput(b, off, len);
+		try {
+			// output can still be pending after all input was taken
+			int n;
+			while ((n = inflater.inflate(inflated)) > 0) {
+				budget.addDecompressed(n, compressedLen);
+				literal(inflated, 0, n);
+			}
+			if (inflater.needsDictionary()) {
+				throw new IOException("Preset dictionary not supported");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void literal(byte[] b, int off, int len) throws IOException {
+		if (literal == null) {
+			literal = new OpenPGPPacketReader(literalBody);
+		}
+		while (len > 0) {
+			if (literal.isDone()) {
+				throw new IOException("Error in datastream");
+			}
+			int n = literal.write(b, off, len);
+			off += n;
+			len -= n;
+		}
+	}
+
+	private final OpenPGPPacketReader.Body literalBody = new OpenPGPPacketReader.Body() {
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (literal.getTag() != 11) {
+				throw new IOException("No Literal packet found");
+			}
+
+			// binary packet type, filename length, filename, 4 byte date
+			while (len > 0
+					&& (literalHeaderLen < 2 || literalHeaderLen < 6 + (literalHeader[1] & 0xFF))) {
+				literalHeader[literalHeaderLen++] = b[off++];
+				len--;
+
+				if (literalHeaderLen == 1 && literalHeader[0] != 0x62) {
+					throw new IOException("Not a binary packet type");
+				}
+				if (literalHeaderLen > 1
+						&& literalHeaderLen == 6 + (literalHeader[1] & 0xFF)) {
+					filename = new String(literalHeader, 2,
+							literalHeader[1] & 0xFF, "UTF-8");
+				}
+			}
+
+			if (len > 0) {
+				budget.addPlaintext(len);
+				res.write(b, off, len);
+			}
+		}
+	};
+}
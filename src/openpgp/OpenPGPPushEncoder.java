@@ -0,0 +1,116 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+/*
+ * Non-blocking counterpart of OpenPGPFactory.getOutputStream(). The data
+ * to encrypt is handed over in arbitrary pieces and the encrypted data,
+ * that is ready, is returned immediately.
+ *
+ * Like OpenPGPPushDecoder, a password is turned into a key on the calling
+ * thread without waiting in the queue of the OpenPGPS2KScheduler. To keep
+ * the S2K off the calling thread entirely, pass a SecretKey or a key from
+ * an OpenPGPKeyPool, which derives its keys in the background and only
+ * falls back to the calling thread if it is empty.
+ */
+public class OpenPGPPushEncoder {
+	private ByteArrayOutputStream res = new ByteArrayOutputStream();
+	private OutputStream os;
+
+	public OpenPGPPushEncoder(String password) throws IOException,
+			NoSuchAlgorithmException {
+		this(password, OpenPGPCompression.ZLIB, 8 * 1024);
+	}
+
+	public OpenPGPPushEncoder(String password, OpenPGPCompression compression,
+			int bufsize) throws IOException, NoSuchAlgorithmException {
+		init(new OpenPGPCipherOutputStream(res, derive(password), bufsize,
+				bufsize, false), compression, bufsize);
+	}
+
+	public OpenPGPPushEncoder(SecretKey key, OpenPGPCompression compression,
+			int bufsize) throws IOException, NoSuchAlgorithmException {
+		init(new OpenPGPCipherOutputStream(res, key, bufsize), compression,
+				bufsize);
+	}
+
+	public OpenPGPPushEncoder(OpenPGPKeyPool keys,
+			OpenPGPCompression compression, int bufsize) throws IOException,
+			NoSuchAlgorithmException {
+		init(new OpenPGPCipherOutputStream(res, keys, bufsize), compression,
+				bufsize);
+	}
+
+	private void init(OutputStream cos, OpenPGPCompression compression,
+			int bufsize) throws IOException {
+		os = OpenPGPFactory.getPlaintextStream(cos,
+				OpenPGPCompressionCodecs.get(compression), bufsize, bufsize,
+				false, null);
+	}
+
+	private static OpenPGPKeyPool.Entry derive(String password)
+			throws IOException, NoSuchAlgorithmException {
+		byte[] salt = new byte[8];
+		OpenPGPCryptoPool.getRandom().nextBytes(salt);
+		int c = OpenPGPS2K.DEFAULT_CODED_COUNT;
+
+		byte[] pw = password.getBytes("UTF-8");
+		try {
+			return new OpenPGPKeyPool.Entry(salt, c,
+					OpenPGPS2KScheduler.deriveKeyUnqueued(salt, 0, c, pw));
+		} finally {
+			Arrays.fill(pw, (byte) 0);
+		}
+	}
+
+	/*
+	 * Returns the encrypted data that is ready, possibly an empty array
+	 */
+	public byte[] update(byte[] b, int off, int len) throws IOException {
+		os.write(b, off, len);
+		return drain();
+	}
+
+	public byte[] update(byte[] b) throws IOException {
+		return update(b, 0, b.length);
+	}
+
+	/*
+	 * Returns the rest of the encrypted data including the modification
+	 * detection code
+	 */
+	public byte[] finish() throws IOException {
+		os.close();
+		return drain();
+	}
+
+	private byte[] drain() {
+		byte[] r = res.toByteArray();
+		res.reset();
+		return r;
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Changes the password of a message with an encrypted session key. Only
+ * the leading Symmetric-Key Encrypted Session Key Packets are rewritten,
+ * the encrypted data is copied untouched.
+ */
+public class OpenPGPRekey {
+
+	private static class Header {
+		byte[] sessionKey;
+		// length of all session key packets
+		int keyPacketsLength = 0;
+		// start of the encrypted data packet up to the check bytes
+		byte[] dataHeader;
+	}
+
+	/*
+	 * Every new password gets its own session key packet. The streams are
+	 * not closed.
+	 */
+	public static void rekey(InputStream is, OutputStream os,
+			String oldPassword, String... newPasswords) throws IOException,
+			NoSuchAlgorithmException, WrongPasswordException {
+		Header h = readHeader(is, oldPassword);
+		byte[] packets;
+		try {
+			packets = createKeyPackets(h.sessionKey, newPasswords);
+		} finally {
+			Arrays.fill(h.sessionKey, (byte) 0);
+		}
+
+		os.write(packets);
+		os.write(h.dataHeader);
+
+		byte[] b = new byte[64 * 1024];
+		int n;
+		while ((n = is.read(b)) != -1) {
+			os.write(b, 0, n);
+		}
+		os.flush();
+	}
+
+	/*
+	 * The file is rewritten to a temporary file, which replaces the
+	 * original only when it is complete, so the original stays intact if
+	 * anything fails
+	 */
+	public static void rekey(Path file, String oldPassword,
+			String... newPasswords) throws IOException,
+			NoSuchAlgorithmException, WrongPasswordException {
+		rekey(file, false, oldPassword, newPasswords);
+	}
+
+	/*
+	 * Like rekey(), but if the new session key packets have the same size
+	 * as the old ones, they are overwritten in place without copying the
+	 * file. A crash during the write can leave the file unreadable, so this
+	 * is only for files that are backed up or can be recreated.
+	 */
+	public static void rekeyInPlace(Path file, String oldPassword,
+			String... newPasswords) throws IOException,
+			NoSuchAlgorithmException, WrongPasswordException {
+		rekey(file, true, oldPassword, newPasswords);
+	}
+
+	private static void rekey(Path file, boolean inPlace,
+			String oldPassword, String[] newPasswords) throws IOException,
+			NoSuchAlgorithmException, WrongPasswordException {
+		try (FileChannel ch = inPlace ? FileChannel.open(file,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)
+				: FileChannel.open(file, StandardOpenOption.READ)) {
+			Header h = readHeader(Channels.newInputStream(ch), oldPassword);
+			byte[] packets;
+			try {
+				packets = createKeyPackets(h.sessionKey, newPasswords);
+			} finally {
+				Arrays.fill(h.sessionKey, (byte) 0);
+			}
+
+			if (inPlace && packets.length == h.keyPacketsLength) {
+				ByteBuffer bb = ByteBuffer.wrap(packets);
+				long off = 0;
+				while (bb.hasRemaining()) {
+					off += ch.write(bb, off);
+				}
+				ch.force(false);
+				return;
+			}
+
+			Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(),
+					file.getFileName().toString(), ".tmp");
+			try {
+				try (FileChannel tch = FileChannel.open(tmp,
+						StandardOpenOption.WRITE)) {
+					OutputStream os = Channels.newOutputStream(tch);
+					os.write(packets);
+					os.write(h.dataHeader);
+
+					long off = h.keyPacketsLength + h.dataHeader.length;
+					long size = ch.size();
+					while (off < size) {
+						off += ch.transferTo(off, size - off, tch);
+					}
+					tch.force(false);
+				}
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+	}
+
+	private static byte[] createKeyPackets(byte[] sessionKey,
+			String[] passwords) throws IOException, NoSuchAlgorithmException {
+		if (passwords.length == 0) {
+			throw new IllegalArgumentException("No new password");
+		}
+
+		SecureRandom random = OpenPGPCryptoPool.getRandom();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for (String pass : passwords) {
+			byte[] pw = pass.getBytes("UTF-8");
+			try {
+				OpenPGPSessionKeyPacket.create(pw, sessionKey, random).write(
+						bos);
+			} finally {
+				Arrays.fill(pw, (byte) 0);
+			}
+		}
+		return bos.toByteArray();
+	}
+
+	private static Header readHeader(InputStream is, String password)
+			throws IOException, NoSuchAlgorithmException,
+			WrongPasswordException {
+		Header h = new Header();
+		List<OpenPGPSessionKeyPacket> keyPackets = new ArrayList<OpenPGPSessionKeyPacket>();
+
+		int tag = is.read();
+		while (tag == 0xC3 || tag == 0x8C) {
+			OpenPGPSessionKeyPacket p = OpenPGPSessionKeyPacket.read(is);
+			h.keyPacketsLength += p.getEncodedLength();
+			keyPackets.add(p);
+			tag = is.read();
+		}
+
+		if (tag == -1) {
+			throw new EOFException("Not enough input");
+		}
+		if (keyPackets.isEmpty()) {
+			throw new IOException("Wrong file format");
+		}
+		if (tag != 0xD2) {
+			throw new IOException("Wrong file format or unsupported");
+		}
+
+		// packettype,packetlength,version,16 ivbytes,2 checkbytes
+		int first = is.read();
+		if (first == -1) {
+			throw new EOFException("Not enough input");
+		}
+		int lenSpace = 1;
+		if (first < 224 || first == 255) {
+			lenSpace = OpenPGPFilterInputStream.decodeLengthSpace(first);
+		}
+		h.dataHeader = new byte[1 + lenSpace + 1 + 18];
+		h.dataHeader[0] = (byte) tag;
+		h.dataHeader[1] = (byte) first;
+		int off = 2;
+		while (off < h.dataHeader.length) {
+			int n = is.read(h.dataHeader, off, h.dataHeader.length - off);
+			if (n < 0) {
+				throw new EOFException("Not enough input");
+			}
+			off += n;
+		}
+
+		if (h.dataHeader[1 + lenSpace] != 1) {
+			throw new IOException("Wrong packet version");
+		}
+
+		byte[] pw = password.getBytes("UTF-8");
+		boolean hasEncryptedKey = false;
+		try {
+			for (OpenPGPSessionKeyPacket p : keyPackets) {
+				if (!p.hasEncryptedKey())
+					continue;
+				hasEncryptedKey = true;
+
+				byte[] key = p.decryptKey(pw);
+				if (key == null)
+					continue;
+				if (checkPrefix(key, h.dataHeader, 2 + lenSpace)) {
+					h.sessionKey = key;
+					return h;
+				}
+				Arrays.fill(key, (byte) 0);
+			}
+		} finally {
+			Arrays.fill(pw, (byte) 0);
+		}
+
+		if (!hasEncryptedKey) {
+			throw new IOException(
+					"No encrypted session key, the data has to be reencrypted");
+		}
+		throw new WrongPasswordException("Decryption check failed");
+	}
+
+	private static boolean checkPrefix(byte[] key, byte[] b, int off)
+			throws NoSuchAlgorithmException {
+		byte[] prefix;
+		try {
+			// iv is initialized to all 0x00 by default
+			Cipher cipher = OpenPGPCryptoPool.getCipher();
+			cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
+					new IvParameterSpec(new byte[16]));
+			prefix = cipher.doFinal(b, off, 18);
+			OpenPGPCryptoPool.release(cipher);
+		} catch (NoSuchAlgorithmException e) {
+			throw e;
+		} catch (GeneralSecurityException e) {
+			throw new NoSuchAlgorithmException(e);
+		}
+
+		return prefix[14] == prefix[16] && prefix[15] == prefix[17];
+	}
+}
@@ -0,0 +1,358 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Writes a log as a series of encrypted files base.000000.pgp,
+ * base.000001.pgp, ... A new segment is started when the current one
+ * would grow beyond maxBytes of plaintext, or when it is older than
+ * maxMillis. A write is never split between two segments. 0 disables
+ * either limit.
+ *
+ * The next segment is always opened in advance on a background thread, so
+ * that the key derivation does not delay the writer. Finished segments are
+ * closed on the same thread. Errors of the background thread are thrown
+ * by the next write or close. Like the other streams it must not be used
+ * by several threads at once.
+ *
+ * The age of a segment is also checked by a timer on the background
+ * thread, so a writer that has gone idle still closes its segment after
+ * maxMillis. Empty segments are never closed by the timer.
+ */
+public class OpenPGPRollingWriter extends OutputStream {
+	private final Path base;
+	private final String password;
+	private final OpenPGPCompression compression;
+	private final int bufsize;
+	private final long maxBytes;
+	private final long maxNanos;
+	private final ScheduledExecutorService executor;
+
+	private Segment current;
+	private Future<Segment> next;
+	private volatile Future<?> timer;
+	// shared with the timer
+	private final ReentrantLock lock = new ReentrantLock();
+	// only used by the background thread
+	private int index = 0;
+	private volatile IOException error;
+	private boolean closed = false;
+	private byte[] onebuf = new byte[1];
+
+	private static class Segment {
+		Path path;
+		OutputStream file;
+		OutputStream os;
+		long bytes;
+		long started;
+	}
+
+	public OpenPGPRollingWriter(Path base, String password, long maxBytes,
+			long maxMillis) throws IOException {
+		this(base, password, OpenPGPCompression.ZLIB, 64 * 1024, maxBytes,
+				maxMillis);
+	}
+
+	public OpenPGPRollingWriter(Path base, String password,
+			OpenPGPCompression compression, int bufsize, long maxBytes,
+			long maxMillis) throws IOException {
+		this.base = base;
+		this.password = password;
+		this.compression = compression;
+		this.bufsize = bufsize;
+		this.maxBytes = maxBytes;
+		this.maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "OpenPGP rolling writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		try {
+			next = executor.submit(prepare);
+			current = take();
+		} catch (IOException e) {
+			executor.shutdown();
+			throw e;
+		}
+		if (maxNanos > 0) {
+			timer = executor.schedule(rotateIdle, maxNanos,
+					TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/*
+	 * Runs on the background thread. It must not wait for the lock, because
+	 * a writer that holds it can wait for the next segment, which is
+	 * prepared on the same thread.
+	 */
+	private final Runnable rotateIdle = new Runnable() {
+		@Override
+		public void run() {
+			// a busy writer checks the age itself
+			long wait = TimeUnit.MILLISECONDS.toNanos(10);
+			if (lock.tryLock()) {
+				try {
+					if (closed)
+						return;
+					wait = check();
+				} finally {
+					lock.unlock();
+				}
+			}
+			try {
+				timer = executor.schedule(this, wait, TimeUnit.NANOSECONDS);
+			} catch (RejectedExecutionException e) {
+				// closed meanwhile
+			}
+		}
+
+		// returns the time until the next check
+		private long check() {
+			long wait = maxNanos - (System.nanoTime() - current.started);
+			if (wait > 0)
+				return wait;
+			if (current.bytes == 0) {
+				// the next write rotates if the segment is too old
+				return maxNanos;
+			}
+			if (!next.isDone())
+				return TimeUnit.MILLISECONDS.toNanos(10);
+			try {
+				rotate();
+			} catch (IOException e) {
+				// the next write tries again
+			}
+			return maxNanos;
+		}
+	};
+
+	/*
+	 * Creates the next unused segment file and writes the header
+	 */
+	private final Callable<Segment> prepare = new Callable<Segment>() {
+		@Override
+		public Segment call() throws IOException, NoSuchAlgorithmException {
+			Segment s = new Segment();
+			while (s.file == null) {
+				s.path = base.resolveSibling(String.format(Locale.ROOT,
+						"%s.%06d.pgp", base.getFileName(), index++));
+				try {
+					s.file = Files.newOutputStream(s.path,
+							StandardOpenOption.CREATE_NEW,
+							StandardOpenOption.WRITE);
+				} catch (FileAlreadyExistsException e) {
+					// never overwrite old segments
+				}
+			}
+
+			try {
+				s.os = OpenPGPFactory.getOutputStream(s.file, password,
+						compression, bufsize);
+			} catch (IOException | NoSuchAlgorithmException e) {
+				s.file.close();
+				Files.deleteIfExists(s.path);
+				throw e;
+			}
+			return s;
+		}
+	};
+
+	/*
+	 * Makes the prepared segment the current one and starts preparing the
+	 * next one
+	 */
+	private Segment take() throws IOException {
+		Segment s;
+		try {
+			s = next.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			// try again with the next write
+			next = executor.submit(prepare);
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		next = executor.submit(prepare);
+		s.started = System.nanoTime();
+		return s;
+	}
+
+	private void finish(final Segment s) {
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					s.os.close();
+				} catch (IOException e) {
+					if (error == null) {
+						error = e;
+					}
+				}
+			}
+		});
+	}
+
+	private void checkError() throws IOException {
+		if (error != null) {
+			throw new IOException("Unable to close segment", error);
+		}
+	}
+
+	// path of the segment that is written to
+	public Path getSegment() {
+		lock.lock();
+		try {
+			return current.path;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Starts a new segment regardless of the limits
+	 */
+	public void rotate() throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			Segment old = current;
+			current = take();
+			finish(old);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		onebuf[0] = (byte) b;
+		write(onebuf, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			checkError();
+
+			if (current.bytes > 0
+					&& ((maxBytes > 0 && current.bytes + len > maxBytes) || (maxNanos > 0 && System
+							.nanoTime() - current.started >= maxNanos))) {
+				rotate();
+			}
+
+			current.os.write(b, off, len);
+			current.bytes += len;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		lock.lock();
+		try {
+			checkError();
+			if (!closed) {
+				current.os.flush();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Finishes the current segment and removes the prepared one. Waits for
+	 * the background thread.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+
+			if (timer != null) {
+				timer.cancel(false);
+			}
+			finish(current);
+			final Future<Segment> unused = next;
+			next = null;
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Segment s = unused.get();
+						s.file.close();
+						Files.deleteIfExists(s.path);
+					} catch (InterruptedException | ExecutionException
+							| IOException e) {
+						// nothing was written to it
+					}
+				}
+			});
+			executor.shutdown();
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+				;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		checkError();
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/*
+ * Iterated and Salted S2K with SHA256 as described in RFC 4880 3.7.1.3.
+ * Simple and Salted S2K are only read.
+ */
+class OpenPGPS2K {
+	/*
+	 * #define EXPBIAS 6 count = ((Int32)16 + (c & 15)) << ((c >> 4) +
+	 * EXPBIAS);
+	 *
+	 * precomputed: c=0x9F .... count=1015808
+	 */
+	static final int DEFAULT_CODED_COUNT = 0x9F;
+
+	// salt and password are hashed in chunks of about this size
+	private static final int CHUNK = 4096;
+
+	static int decodeCount(int c) {
+		c &= 0xFF;
+		return (16 + (c & 15)) << ((c >> 4) + 6);
+	}
+
+	/*
+	 * The hash input is salt and password repeated up to count bytes. A
+	 * buffer of whole repetitions is hashed over and over, and the end of
+	 * the input is a prefix of it. This is about twice as fast as two
+	 * small updates per repetition.
+	 */
+	static byte[] deriveKey(byte[] salt, int off, int c, byte[] pw)
+			throws NoSuchAlgorithmException {
+		int len = pw.length + 8;
+		// salt and password are hashed at least once, even above the count
+		int count = Math.max(decodeCount(c), len);
+
+		int reps = Math.min((CHUNK + len - 1) / len, (count + len - 1) / len);
+		byte[] b = new byte[reps * len];
+		for (int i = 0; i < b.length; i += len) {
+			System.arraycopy(salt, off, b, i, 8);
+			System.arraycopy(pw, 0, b, i + 8, pw.length);
+		}
+
+		MessageDigest md = OpenPGPCryptoPool.getSHA256();
+		while (count >= b.length) {
+			md.update(b);
+			count -= b.length;
+		}
+		md.update(b, 0, count);
+		Arrays.fill(b, (byte) 0);
+
+		byte[] res = md.digest();
+		OpenPGPCryptoPool.releaseSHA256(md);
+		return res;
+	}
+
+	/*
+	 * Simple S2K if salt is null, otherwise Salted S2K
+	 */
+	static byte[] deriveKey(byte[] salt, byte[] pw)
+			throws NoSuchAlgorithmException {
+		MessageDigest md = OpenPGPCryptoPool.getSHA256();
+		if (salt != null) {
+			md.update(salt);
+		}
+		md.update(pw);
+		byte[] res = md.digest();
+		OpenPGPCryptoPool.releaseSHA256(md);
+		return res;
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Admission control for the S2K key derivation. A message can ask for up
+ * to 65011712 bytes of SHA256, which takes a core for hundreds of
+ * milliseconds, so a burst of opened streams would stall every thread.
+ *
+ * Counts above the maximum are rejected before any work is done. At most
+ * a fixed number of derivations run at once, the others wait in a first
+ * in, first out queue. A caller that waits longer than the timeout gets
+ * an InterruptedIOException. Keys found in a key cache do not go through
+ * the queue.
+ */
+public class OpenPGPS2KScheduler {
+	// largest count allowed by RFC 4880
+	static final int MAX_COUNT = 65011712;
+
+	private static volatile int maxCount = MAX_COUNT;
+	private static volatile int concurrency = Runtime.getRuntime()
+			.availableProcessors();
+	private static volatile Semaphore permits = new Semaphore(concurrency,
+			true);
+
+	// milliseconds, 0 waits forever
+	private static volatile long timeout = 0;
+	private static final ThreadLocal<Long> callerTimeout = new ThreadLocal<Long>();
+
+	private static final AtomicInteger queued = new AtomicInteger();
+	private static final AtomicInteger maxQueued = new AtomicInteger();
+	private static final AtomicLong derivations = new AtomicLong();
+	private static final AtomicLong rejected = new AtomicLong();
+	private static final AtomicLong timeouts = new AtomicLong();
+	private static final AtomicLong waitNanos = new AtomicLong();
+	private static final AtomicLong maxWaitNanos = new AtomicLong();
+
+	/*
+	 * Messages with a higher count are not decrypted. It cannot be lower
+	 * than the count used for new messages.
+	 */
+	public static void setMaxCount(int count) {
+		if (count < OpenPGPS2K.decodeCount(OpenPGPS2K.DEFAULT_CODED_COUNT)
+				|| count > MAX_COUNT) {
+			throw new IllegalArgumentException("Invalid S2K count: " + count);
+		}
+		maxCount = count;
+	}
+
+	public static int getMaxCount() {
+		return maxCount;
+	}
+
+	/*
+	 * Derivations that already run or wait keep the old limit
+	 */
+	public static synchronized void setConcurrency(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("Invalid concurrency: " + n);
+		}
+		concurrency = n;
+		permits = new Semaphore(n, true);
+	}
+
+	public static int getConcurrency() {
+		return concurrency;
+	}
+
+	/*
+	 * Maximum time in milliseconds to wait in the queue, 0 waits forever
+	 */
+	public static void setTimeout(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("Invalid timeout: " + millis);
+		}
+		timeout = millis;
+	}
+
+	public static long getTimeout() {
+		return timeout;
+	}
+
+	/*
+	 * Overrides the timeout for streams opened by the current thread, until
+	 * clearCallerTimeout() is called
+	 */
+	public static void setCallerTimeout(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("Invalid timeout: " + millis);
+		}
+		callerTimeout.set(millis);
+	}
+
+	public static void clearCallerTimeout() {
+		callerTimeout.remove();
+	}
+
+	// number of callers currently waiting
+	public static int getQueueLength() {
+		return queued.get();
+	}
+
+	public static int getMaxQueueLength() {
+		return maxQueued.get();
+	}
+
+	// number of derivations currently running
+	public static int getActiveCount() {
+		Semaphore s = permits;
+		return Math.max(0, concurrency - s.availablePermits());
+	}
+
+	public static long getDerivationCount() {
+		return derivations.get();
+	}
+
+	// counts above the maximum
+	public static long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public static long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	// sum of the time all callers spent in the queue
+	public static long getTotalWaitNanos() {
+		return waitNanos.get();
+	}
+
+	public static long getMaxWaitNanos() {
+		return maxWaitNanos.get();
+	}
+
+	public static void resetStatistics() {
+		maxQueued.set(queued.get());
+		derivations.set(0);
+		rejected.set(0);
+		timeouts.set(0);
+		waitNanos.set(0);
+		maxWaitNanos.set(0);
+	}
+
+	static byte[] deriveKey(byte[] salt, int off, int c, byte[] pw)
+			throws IOException, NoSuchAlgorithmException {
+		checkCount(c);
+
+		Long t = callerTimeout.get();
+		long millis = t != null ? t : timeout;
+
+		Semaphore s = permits;
+		boolean acquired;
+		long start = System.nanoTime();
+		updateMax(maxQueued, queued.incrementAndGet());
+		try {
+			if (millis > 0) {
+				acquired = s.tryAcquire(millis, TimeUnit.MILLISECONDS);
+			} else {
+				s.acquire();
+				acquired = true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while waiting for the key derivation");
+		} finally {
+			queued.decrementAndGet();
+			long wait = System.nanoTime() - start;
+			waitNanos.addAndGet(wait);
+			updateMax(maxWaitNanos, wait);
+		}
+
+		if (!acquired) {
+			timeouts.incrementAndGet();
+			throw new InterruptedIOException("Key derivation not started within "
+					+ millis + " ms");
+		}
+
+		try {
+			return OpenPGPS2K.deriveKey(salt, off, c, pw);
+		} finally {
+			s.release();
+			derivations.incrementAndGet();
+		}
+	}
+
+	/*
+	 * Derives the key on the calling thread without waiting for a permit,
+	 * for callers that must never block. Only the count limit applies, so
+	 * the derivation still takes a core for as long as it needs.
+	 */
+	static byte[] deriveKeyUnqueued(byte[] salt, int off, int c, byte[] pw)
+			throws IOException, NoSuchAlgorithmException {
+		checkCount(c);
+		try {
+			return OpenPGPS2K.deriveKey(salt, off, c, pw);
+		} finally {
+			derivations.incrementAndGet();
+		}
+	}
+
+	private static void checkCount(int c) throws IOException {
+		int count = OpenPGPS2K.decodeCount(c);
+		if (count > maxCount) {
+			rejected.incrementAndGet();
+			throw new IOException("S2K count " + count
+					+ " exceeds the limit of " + maxCount);
+		}
+	}
+
+	private static void updateMax(AtomicInteger max, int value) {
+		int m;
+		while ((m = max.get()) < value && !max.compareAndSet(m, value))
+			;
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long m;
+		while ((m = max.get()) < value && !max.compareAndSet(m, value))
+			;
+	}
+}
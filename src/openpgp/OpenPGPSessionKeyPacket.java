@@ -0,0 +1,365 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Symmetric-Key Encrypted Session Key Packet (Tag 3) with AES256 and
+ * Iterated and Salted S2K with SHA256.
+ *
+ * Without an encrypted session key the S2K output is used directly as the
+ * content key. With an encrypted session key the content key is random and
+ * encrypted with the S2K output, so the password can be changed by
+ * rewriting only this packet.
+ *
+ * Packets for a raw key use Simple S2K. The key takes the place of the S2K
+ * output, so nothing has to be derived. Simple and Salted S2K are also
+ * read with a password.
+ */
+class OpenPGPSessionKeyPacket {
+	// 1 byte algorithm + 32 byte AES256 key
+	static final int ENCRYPTED_KEY_LENGTH = 33;
+
+	static final int S2K_SIMPLE = 0;
+	static final int S2K_SALTED = 1;
+	static final int S2K_ITERATED = 3;
+
+	private final int s2kType;
+	// null for Simple S2K
+	private final byte[] salt;
+	// only for Iterated and Salted S2K
+	private final int codedCount;
+	private final byte[] encryptedKey;
+
+	// content key, only known if the packet was created locally
+	private byte[] key;
+
+	OpenPGPSessionKeyPacket(byte[] salt, int codedCount, byte[] encryptedKey) {
+		this(S2K_ITERATED, salt, codedCount, encryptedKey);
+	}
+
+	OpenPGPSessionKeyPacket(int s2kType, byte[] salt, int codedCount,
+			byte[] encryptedKey) {
+		this.s2kType = s2kType;
+		this.salt = salt;
+		this.codedCount = codedCount;
+		this.encryptedKey = encryptedKey;
+	}
+
+	// version, algorithm, S2K type, hash and the S2K specifier
+	private static int headerLength(int s2kType) {
+		switch (s2kType) {
+		case S2K_SIMPLE:
+			return 4;
+		case S2K_SALTED:
+			return 12;
+		case S2K_ITERATED:
+			return 13;
+		default:
+			return -1;
+		}
+	}
+
+	private static boolean isValidLength(int len) {
+		for (int t : new int[] { S2K_SIMPLE, S2K_SALTED, S2K_ITERATED }) {
+			if (len == headerLength(t)
+					|| len == headerLength(t) + ENCRYPTED_KEY_LENGTH) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * If sessionKey is null the S2K output becomes the content key
+	 */
+	static OpenPGPSessionKeyPacket create(byte[] pw, byte[] sessionKey,
+			SecureRandom random) throws IOException, NoSuchAlgorithmException {
+		byte[] salt = new byte[8];
+		random.nextBytes(salt);
+
+		int c = OpenPGPS2K.DEFAULT_CODED_COUNT;
+		byte[] derived = OpenPGPS2KScheduler.deriveKey(salt, 0, c, pw);
+		return create(salt, c, derived, sessionKey);
+	}
+
+	/*
+	 * Packet for an S2K output that was derived before, see
+	 * OpenPGPKeyPool. derived becomes the content key if sessionKey is
+	 * null, otherwise it is overwritten.
+	 */
+	static OpenPGPSessionKeyPacket create(byte[] salt, int c, byte[] derived,
+			byte[] sessionKey) throws NoSuchAlgorithmException {
+		OpenPGPSessionKeyPacket res;
+		if (sessionKey == null) {
+			res = new OpenPGPSessionKeyPacket(salt, c, null);
+			res.key = derived;
+		} else {
+			byte[] plain = new byte[ENCRYPTED_KEY_LENGTH];
+			// 9 means AES256
+			plain[0] = 9;
+			System.arraycopy(sessionKey, 0, plain, 1, 32);
+
+			res = new OpenPGPSessionKeyPacket(salt, c, crypt(
+					Cipher.ENCRYPT_MODE, derived, plain));
+			Arrays.fill(plain, (byte) 0);
+			Arrays.fill(derived, (byte) 0);
+			res.key = sessionKey;
+		}
+		return res;
+	}
+
+	/*
+	 * Bytes of an AES256 key given by the caller, the caller has to zero
+	 * them after use
+	 */
+	static byte[] rawKey(SecretKey key) {
+		byte[] b = key.getEncoded();
+		if (b == null || b.length != 32) {
+			throw new IllegalArgumentException(
+					"Only 256 bit AES keys supported");
+		}
+		return b;
+	}
+
+	/*
+	 * Packet for a raw key. If sessionKey is null the key itself becomes
+	 * the content key.
+	 */
+	static OpenPGPSessionKeyPacket create(byte[] kek, byte[] sessionKey)
+			throws NoSuchAlgorithmException {
+		OpenPGPSessionKeyPacket res;
+		if (sessionKey == null) {
+			res = new OpenPGPSessionKeyPacket(S2K_SIMPLE, null, -1, null);
+			res.key = kek.clone();
+		} else {
+			byte[] plain = new byte[ENCRYPTED_KEY_LENGTH];
+			// 9 means AES256
+			plain[0] = 9;
+			System.arraycopy(sessionKey, 0, plain, 1, 32);
+
+			res = new OpenPGPSessionKeyPacket(S2K_SIMPLE, null, -1, crypt(
+					Cipher.ENCRYPT_MODE, kek, plain));
+			Arrays.fill(plain, (byte) 0);
+			res.key = sessionKey;
+		}
+		return res;
+	}
+
+	/*
+	 * Reads the packet after the tag byte
+	 */
+	static OpenPGPSessionKeyPacket read(InputStream in) throws IOException,
+			NoSuchAlgorithmException {
+		byte[] b = new byte[13 + ENCRYPTED_KEY_LENGTH];
+
+		readFully(in, b, 0, 1);
+		int len = b[0] & 0xFF;
+		if (!isValidLength(len)) {
+			throw new IOException("Wrong file format");
+		}
+		readFully(in, b, 0, len);
+
+		return parse(b, 0, len);
+	}
+
+	/*
+	 * Parses the packet body without tag and length
+	 */
+	static OpenPGPSessionKeyPacket parse(byte[] b, int off, int len)
+			throws IOException, NoSuchAlgorithmException {
+		if (len < 4 || !isValidLength(len)) {
+			throw new IOException("Wrong file format");
+		}
+
+		// version,symalgo,s2kversion,hashalgo
+		int type = b[off + 2];
+		int header = headerLength(type);
+		if (b[off] != 4 || header == -1
+				|| (len != header && len != header + ENCRYPTED_KEY_LENGTH)) {
+			throw new IOException("Wrong file format");
+		}
+
+		int c = -1;
+		if (type == S2K_ITERATED) {
+			c = b[off + 12] & 0xFF;
+			int count = OpenPGPS2K.decodeCount(c);
+			// 1024-65011712
+			if (count < 1024 || count > 65011712) {
+				throw new IOException("Wrong file format");
+			}
+		}
+
+		// 9 means AES256
+		// 8 means SHA256
+		// we only support AES256 with SHA256 at the moment
+		if (b[off + 1] != 9 || b[off + 3] != 8) {
+			throw new NoSuchAlgorithmException(
+					"Only AES256 and SHA256 supported");
+		}
+
+		byte[] salt = null;
+		if (type != S2K_SIMPLE) {
+			salt = new byte[8];
+			System.arraycopy(b, off + 4, salt, 0, 8);
+		}
+
+		byte[] encryptedKey = null;
+		if (len > header) {
+			encryptedKey = new byte[ENCRYPTED_KEY_LENGTH];
+			System.arraycopy(b, off + header, encryptedKey, 0,
+					ENCRYPTED_KEY_LENGTH);
+		}
+
+		return new OpenPGPSessionKeyPacket(type, salt, c, encryptedKey);
+	}
+
+	private static void readFully(InputStream in, byte[] b, int off, int len)
+			throws IOException {
+		while (len > 0) {
+			int n = in.read(b, off, len);
+			if (n < 0) {
+				throw new EOFException("Not enough input");
+			}
+			off += n;
+			len -= n;
+		}
+	}
+
+	private static byte[] crypt(int mode, byte[] key, byte[] input)
+			throws NoSuchAlgorithmException {
+		try {
+			// iv is initialized to all 0x00 by default
+			Cipher cipher = OpenPGPCryptoPool.getCipher();
+			cipher.init(mode, new SecretKeySpec(key, "AES"),
+					new IvParameterSpec(new byte[16]));
+			byte[] res = cipher.doFinal(input);
+			OpenPGPCryptoPool.release(cipher);
+			return res;
+		} catch (NoSuchAlgorithmException e) {
+			throw e;
+		} catch (GeneralSecurityException e) {
+			// AES with NoPadding and a 256 bit key always works
+			throw new NoSuchAlgorithmException(e);
+		}
+	}
+
+	boolean hasEncryptedKey() {
+		return encryptedKey != null;
+	}
+
+	// size of the whole packet including tag and length
+	int getEncodedLength() {
+		return 2 + headerLength(s2kType)
+				+ (encryptedKey == null ? 0 : ENCRYPTED_KEY_LENGTH);
+	}
+
+	byte[] getKey() {
+		return key;
+	}
+
+	/*
+	 * Like decryptKey(pw), but the derivation does not wait in the queue of
+	 * the OpenPGPS2KScheduler
+	 */
+	byte[] decryptKeyUnqueued(byte[] pw) throws IOException,
+			NoSuchAlgorithmException {
+		if (s2kType != S2K_ITERATED) {
+			return unwrapKey(OpenPGPS2K.deriveKey(salt, pw));
+		}
+		return unwrapKey(OpenPGPS2KScheduler.deriveKeyUnqueued(salt, 0,
+				codedCount, pw));
+	}
+
+	/*
+	 * Returns the content key or null if the password obviously does not
+	 * match. Without an encrypted session key every password produces a key,
+	 * so the caller still has to check the prefix of the encrypted data.
+	 */
+	byte[] decryptKey(byte[] pw) throws IOException,
+			NoSuchAlgorithmException {
+		return decryptKey(pw, null);
+	}
+
+	byte[] decryptKey(byte[] pw, OpenPGPKeyCache cache)
+			throws IOException, NoSuchAlgorithmException {
+		byte[] derived;
+		if (s2kType != S2K_ITERATED) {
+			derived = OpenPGPS2K.deriveKey(salt, pw);
+		} else if (cache != null) {
+			derived = cache.deriveKey(salt, 0, codedCount, pw);
+		} else {
+			derived = OpenPGPS2KScheduler.deriveKey(salt, 0, codedCount, pw);
+		}
+		return unwrapKey(derived);
+	}
+
+	/*
+	 * Returns the content key for the output of the S2K or a raw key,
+	 * or null if it obviously does not match
+	 */
+	byte[] unwrapKey(byte[] derived) throws NoSuchAlgorithmException {
+		if (encryptedKey == null) {
+			return derived;
+		}
+
+		byte[] plain = crypt(Cipher.DECRYPT_MODE, derived, encryptedKey);
+		Arrays.fill(derived, (byte) 0);
+		if (plain[0] != 9) {
+			return null;
+		}
+
+		byte[] res = new byte[32];
+		System.arraycopy(plain, 1, res, 0, 32);
+		Arrays.fill(plain, (byte) 0);
+		return res;
+	}
+
+	void write(OutputStream out) throws IOException {
+		// packet header with length,version,symalgo,s2kversion,hashalgo
+		// 9 means AES256
+		// 8 means SHA256
+		int len = headerLength(s2kType)
+				+ (encryptedKey == null ? 0 : ENCRYPTED_KEY_LENGTH);
+		byte[] b = { (byte) 0xC3, (byte) len, 4, 9, (byte) s2kType, 8 };
+		out.write(b);
+		if (salt != null) {
+			out.write(salt);
+		}
+		if (s2kType == S2K_ITERATED) {
+			out.write(codedCount);
+		}
+		if (encryptedKey != null) {
+			out.write(encryptedKey);
+		}
+	}
+}
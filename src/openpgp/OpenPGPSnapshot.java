@@ -0,0 +1,122 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/*
+ * In-memory copy of the state of a stream and the streams below it at one
+ * point of a message. A stream resumed from it with
+ * OpenPGPFactory.resumeOutputStream() or resumeInputStream() continues the
+ * message from there, for example to repeat a transfer from the last
+ * acknowledged offset over a new connection.
+ *
+ * It only lives as long as the process. The SHA-1 state of the MDC can
+ * only be cloned, so a snapshot cannot be saved or used for recovery after
+ * a crash. It holds the content key and buffered plaintext and should be
+ * destroyed when it is no longer needed.
+ *
+ * Binary messages without compression or with ZIP or ZLIB can be written
+ * from a snapshot. Taking one from a deflate stream forces a full flush,
+ * which costs a few bytes and some compression. Only uncompressed messages
+ * can be read from a snapshot, because the state of a decompressor cannot
+ * be saved.
+ */
+public class OpenPGPSnapshot {
+	enum Layer {
+		LITERAL, COMPRESSION, CIPHER
+	}
+
+	final Layer layer;
+	// the layer below, null for the encryption
+	final OpenPGPSnapshot next;
+
+	// OpenPGPFilterOutputStream and OpenPGPFilterInputStream
+	int bufferSize;
+	int chunkSize;
+	byte[] buf;
+	int pos;
+	boolean started;
+	boolean flushMode;
+	int len;
+	long packetLen;
+	boolean partial;
+	int inputPos;
+	int inputLen;
+	int inputRes;
+	long inputCount;
+	OpenPGPCompression compression;
+
+	// deflate below the literal data, see OpenPGPCompressionCodecs
+	OpenPGPCompression deflate;
+	int adler;
+
+	// encryption and decryption
+	byte[] key;
+	MessageDigest hash;
+	long offset;
+	int chunkLeft;
+	byte[] feedback;
+	byte[] lagBuf;
+	int lag;
+	int skip;
+	byte[] outBuf;
+	boolean hashChecked;
+	byte[] history;
+	long count;
+	int held;
+
+	OpenPGPSnapshot(Layer layer, OpenPGPSnapshot next) {
+		this.layer = layer;
+		this.next = next;
+	}
+
+	/*
+	 * Number of bytes of the encrypted message written or read up to the
+	 * snapshot. The output must be cut to this length, or the input
+	 * positioned there, before a stream is resumed.
+	 */
+	public long getOffset() {
+		OpenPGPSnapshot snap = this;
+		while (snap.next != null) {
+			snap = snap.next;
+		}
+		return snap.offset;
+	}
+
+	// overwrites the key and the buffered data
+	public void destroy() {
+		for (OpenPGPSnapshot snap = this; snap != null; snap = snap.next) {
+			wipe(snap.buf);
+			wipe(snap.key);
+			wipe(snap.lagBuf);
+			wipe(snap.outBuf);
+			if (snap.hash != null) {
+				snap.hash.reset();
+			}
+		}
+	}
+
+	private static void wipe(byte[] b) {
+		if (b != null) {
+			Arrays.fill(b, (byte) 0);
+		}
+	}
+}
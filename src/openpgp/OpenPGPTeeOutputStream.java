@@ -0,0 +1,78 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Writes the same data to several streams. All of them are flushed and
+ * closed, even if one of them fails. The first error is thrown.
+ */
+class OpenPGPTeeOutputStream extends OutputStream {
+	private final OutputStream[] outs;
+
+	OpenPGPTeeOutputStream(OutputStream[] outs) {
+		this.outs = outs;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		for (OutputStream os : outs) {
+			os.write(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		for (OutputStream os : outs) {
+			os.write(b, off, len);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		IOException ex = null;
+		for (OutputStream os : outs) {
+			try {
+				os.flush();
+			} catch (IOException e) {
+				if (ex == null)
+					ex = e;
+			}
+		}
+		if (ex != null)
+			throw ex;
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException ex = null;
+		for (OutputStream os : outs) {
+			try {
+				os.close();
+			} catch (IOException e) {
+				if (ex == null)
+					ex = e;
+			}
+		}
+		if (ex != null)
+			throw ex;
+	}
+}
@@ -0,0 +1,252 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Reads the whole plaintext of a message before any of it is returned, so
+ * that nothing is released before the MDC at the end is verified. Up to
+ * memoryLimit bytes are kept on the heap, the rest is written to a
+ * temporary file, which is read with positional reads and deleted on
+ * close. The temporary file holds plaintext, so dir should be on a
+ * trusted file system.
+ */
+public class OpenPGPVerifiedInputStream extends InputStream {
+	private final int chunkSize;
+	private List<byte[]> chunks = new ArrayList<byte[]>();
+	private long memLength = 0;
+	private long length = 0;
+
+	private Path file;
+	private FileChannel channel;
+
+	private long pos = 0;
+	private long mark = 0;
+	private boolean closed = false;
+
+	/*
+	 * Consumes and closes the plaintext stream in. If the message is
+	 * damaged or truncated, its exception is thrown and nothing is kept.
+	 */
+	public OpenPGPVerifiedInputStream(InputStream in, int bufsize,
+			long memoryLimit, Path dir) throws IOException {
+		if (memoryLimit < 0) {
+			throw new IllegalArgumentException("Invalid memory limit");
+		}
+		chunkSize = Math.max(bufsize, 512);
+
+		boolean ok = false;
+		try {
+			stage(in, memoryLimit, dir);
+			// the MDC is checked when the end of the message is closed
+			in.close();
+			ok = true;
+		} finally {
+			if (!ok) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+				discard();
+			}
+		}
+	}
+
+	private void stage(InputStream in, long memoryLimit, Path dir)
+			throws IOException {
+		byte[] spill = null;
+		for (;;) {
+			byte[] b;
+			if (memLength + chunkSize <= memoryLimit) {
+				b = new byte[chunkSize];
+			} else {
+				if (spill == null) {
+					spill = new byte[chunkSize];
+				}
+				b = spill;
+			}
+
+			int n = 0;
+			int r;
+			while (n < b.length && (r = in.read(b, n, b.length - n)) != -1) {
+				n += r;
+			}
+			if (n == 0) {
+				break;
+			}
+
+			if (b != spill) {
+				chunks.add(b);
+				memLength += n;
+			} else {
+				write(b, n, dir);
+			}
+			length += n;
+
+			if (n < b.length) {
+				break;
+			}
+		}
+	}
+
+	private void write(byte[] b, int len, Path dir) throws IOException {
+		if (channel == null) {
+			if (dir == null) {
+				file = Files.createTempFile("openpgp", ".tmp");
+			} else {
+				file = Files.createTempFile(dir, "openpgp", ".tmp");
+			}
+			channel = FileChannel.open(file, StandardOpenOption.READ,
+					StandardOpenOption.WRITE,
+					StandardOpenOption.DELETE_ON_CLOSE);
+		}
+
+		ByteBuffer bb = ByteBuffer.wrap(b, 0, len);
+		while (bb.hasRemaining()) {
+			channel.write(bb);
+		}
+	}
+
+	private void discard() {
+		chunks = null;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+			channel = null;
+		}
+		if (file != null) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+			}
+			file = null;
+		}
+	}
+
+	// number of verified plaintext bytes
+	public long getLength() {
+		return length;
+	}
+
+	// true if the plaintext did not fit into the memory limit
+	public boolean isSpilled() {
+		return length > memLength;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n == -1 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		if (pos >= length) {
+			return -1;
+		}
+		if (len == 0) {
+			return 0;
+		}
+
+		if (pos < memLength) {
+			byte[] c = chunks.get((int) (pos / chunkSize));
+			int coff = (int) (pos % chunkSize);
+			int n = (int) Math.min(len, Math.min(chunkSize - coff, memLength
+					- pos));
+			System.arraycopy(c, coff, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		/*
+		 * no mapping, it would keep the deleted file on disk until the
+		 * buffer is garbage collected
+		 */
+		int n = channel.read(ByteBuffer.wrap(b, off,
+				(int) Math.min(len, length - pos)), pos - memLength);
+		if (n < 0) {
+			throw new IOException("Temporary file truncated");
+		}
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		long s = Math.max(0, Math.min(n, length - pos));
+		pos += s;
+		return s;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		return (int) Math.min(Integer.MAX_VALUE, length - pos);
+	}
+
+	/*
+	 * The plaintext can be read again from any mark. The read limit is
+	 * ignored.
+	 */
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = pos;
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed");
+		}
+		pos = mark;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		discard();
+	}
+}
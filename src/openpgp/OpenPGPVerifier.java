@@ -0,0 +1,111 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Checks the integrity of an encrypted file without decompressing or
+ * parsing the literal data. The data is decrypted and hashed, but never
+ * copied into a caller's buffer. There is no shared state, so it is safe
+ * to verify many files in parallel.
+ */
+public class OpenPGPVerifier {
+
+	public static OpenPGPVerifyResult verify(Path path, String password)
+			throws NoSuchAlgorithmException {
+		return verify(path, password, 64 * 1024);
+	}
+
+	public static OpenPGPVerifyResult verify(Path path, String password,
+			int bufsize) throws NoSuchAlgorithmException {
+		InputStream is;
+		try {
+			is = Files.newInputStream(path);
+		} catch (IOException e) {
+			return new OpenPGPVerifyResult(OpenPGPVerifyResult.Status.MALFORMED,
+					0, 0, 0, e);
+		}
+		return verify(is, password, bufsize);
+	}
+
+	public static OpenPGPVerifyResult verify(InputStream is, String password)
+			throws NoSuchAlgorithmException {
+		return verify(is, password, 64 * 1024);
+	}
+
+	/*
+	 * The input stream is always closed, regardless of the outcome
+	 */
+	public static OpenPGPVerifyResult verify(InputStream is, String password,
+			int bufsize) throws NoSuchAlgorithmException {
+		long start = System.nanoTime();
+		OpenPGPCipherInputStream in = null;
+		OpenPGPVerifyResult.Status status = OpenPGPVerifyResult.Status.OK;
+		Exception ex = null;
+		long plain = 0;
+		long n;
+		boolean closed = false;
+
+		try {
+			in = new OpenPGPCipherInputStream(
+					OpenPGPFactory.getEncryptedStream(is, bufsize, false),
+					password, bufsize);
+			while ((n = in.skip(Long.MAX_VALUE)) > 0) {
+				plain += n;
+			}
+			in.close();
+			closed = true;
+		} catch (WrongPasswordException e) {
+			status = OpenPGPVerifyResult.Status.BAD_PASSWORD;
+			ex = e;
+		} catch (InvalidChecksumException e) {
+			status = OpenPGPVerifyResult.Status.BAD_MDC;
+			ex = e;
+		} catch (EOFException e) {
+			status = OpenPGPVerifyResult.Status.TRUNCATED;
+			ex = e;
+		} catch (IOException e) {
+			status = OpenPGPVerifyResult.Status.MALFORMED;
+			ex = e;
+		} finally {
+			if (!closed) {
+				// gives the pooled cipher and hash back
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+					}
+				}
+				try {
+					is.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		return new OpenPGPVerifyResult(status, in == null ? 0
+				: in.getInputCount(), plain, System.nanoTime() - start, ex);
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+public class OpenPGPVerifyResult {
+	public enum Status {
+		OK, BAD_PASSWORD, BAD_MDC, TRUNCATED, MALFORMED
+	}
+
+	private final Status status;
+	private final long ciphertextBytes;
+	private final long plaintextBytes;
+	private final long nanos;
+	private final Exception exception;
+
+	public OpenPGPVerifyResult(Status status, long ciphertextBytes,
+			long plaintextBytes, long nanos, Exception exception) {
+		this.status = status;
+		this.ciphertextBytes = ciphertextBytes;
+		this.plaintextBytes = plaintextBytes;
+		this.nanos = nanos;
+		this.exception = exception;
+	}
+
+	public boolean isOk() {
+		return status == Status.OK;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	// number of bytes read from the encrypted input
+	public long getCiphertextBytes() {
+		return ciphertextBytes;
+	}
+
+	// number of decrypted bytes without prefix and MDC packet
+	public long getPlaintextBytes() {
+		return plaintextBytes;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	// the exception that caused the failure or null
+	public Exception getException() {
+		return exception;
+	}
+
+	@Override
+	public String toString() {
+		return status + " (" + ciphertextBytes + " bytes read, "
+				+ plaintextBytes + " bytes decrypted)";
+	}
+}
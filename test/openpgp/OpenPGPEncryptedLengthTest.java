@@ -0,0 +1,133 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/*
+ * Compares OpenPGPFactory.getEncryptedLength() with the size of real
+ * uncompressed output, for sizes around the partial packet boundaries,
+ * with and without a session key, in flush mode and with bigger chunks.
+ * Exits with 1 on failure.
+ *
+ * java -cp bin:test-bin openpgp.OpenPGPEncryptedLengthTest
+ */
+public class OpenPGPEncryptedLengthTest {
+	private static int failures = 0;
+	private static int cases = 0;
+
+	private static class CountingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Random r = new Random(42);
+
+		for (int bs : new int[] { 512, 4096, 65536 }) {
+			for (long size : sizes(bs, r)) {
+				for (boolean sk : new boolean[] { false, true }) {
+					long expected = OpenPGPFactory.getEncryptedLength(size,
+							bs, sk);
+
+					// exact for chunks of bufsize, also in flush mode as
+					// long as flush() is not called
+					check(bs, size, sk, bs, false, r, expected, true);
+					check(bs, size, sk, bs, true, r, expected, true);
+
+					// bigger chunks need fewer length headers
+					for (int f : new int[] { 4, 64 }) {
+						check(bs, size, sk, bs * f, false, r, expected, false);
+					}
+				}
+			}
+		}
+
+		System.out.println(cases + " cases, "
+				+ (failures == 0 ? "PASSED" : failures + " FAILED"));
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/*
+	 * Sizes where the literal, compressed and encrypted packets cross a
+	 * buffer boundary, and a few random ones
+	 */
+	private static long[] sizes(int bs, Random r) {
+		long[] res = new long[3 * 2 * 45 + 10];
+		int n = 0;
+		for (int k = 0; k < 3; k++) {
+			for (int d = -22; d <= 22; d++) {
+				// literal header of 6 bytes, compressed header of 1 byte
+				res[n++] = Math.max(0, k * bs - 6 + d);
+				res[n++] = Math.max(0, k * bs - 6 - 1 - 19 + d);
+			}
+		}
+		while (n < res.length) {
+			res[n++] = r.nextInt(8 * bs);
+		}
+		return res;
+	}
+
+	private static void check(int bs, long size, boolean sk, int chunk,
+			boolean flushMode, Random r, long expected, boolean exact)
+			throws Exception {
+		CountingOutputStream c = new CountingOutputStream();
+		OutputStream os = OpenPGPFactory.getOutputStream(c,
+				new OpenPGPOptions("length")
+						.setCompression(OpenPGPCompression.NONE)
+						.setBufferSize(bs).setChunkSize(chunk)
+						.setSessionKey(sk).setFlushMode(flushMode));
+		write(os, size, r);
+		os.close();
+
+		cases++;
+		if (exact ? c.count != expected : c.count > expected) {
+			failures++;
+			System.out.println("bufsize " + bs + ", size " + size
+					+ ", session key " + sk + ", chunk " + chunk
+					+ ", flush mode " + flushMode + ": " + c.count
+					+ " bytes, expected " + (exact ? "" : "at most ")
+					+ expected);
+		}
+	}
+
+	// random write splits, the length must not depend on them
+	private static void write(OutputStream os, long size, Random r)
+			throws IOException {
+		byte[] b = new byte[8192];
+		while (size > 0) {
+			int n = (int) Math.min(size, 1 + r.nextInt(b.length));
+			os.write(b, 0, n);
+			size -= n;
+		}
+	}
+}
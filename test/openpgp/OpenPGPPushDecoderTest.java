@@ -0,0 +1,115 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Round trips of the streams through the push decoder, with the input
+ * handed over in random pieces. Exits with 1 on failure.
+ *
+ * java -cp bin:test-bin openpgp.OpenPGPPushDecoderTest
+ */
+public class OpenPGPPushDecoderTest {
+	private static final OpenPGPCompression[] COMPRESSIONS = {
+			OpenPGPCompression.NONE, OpenPGPCompression.ZIP,
+			OpenPGPCompression.ZLIB };
+
+	public static void main(String[] args) throws Exception {
+		Random r = new Random(42);
+		int failures = 0;
+
+		for (OpenPGPCompression c : COMPRESSIONS) {
+			for (int size : new int[] { 0, 1, 511, 512, 8192, 100000 }) {
+				byte[] data = new byte[size];
+				r.nextBytes(data);
+				byte[] enc = encrypt(data, c);
+
+				try {
+					byte[] dec = decrypt(enc, r);
+					if (!Arrays.equals(data, dec)) {
+						failures++;
+						System.out.println(c + " " + size + ": wrong data");
+					}
+				} catch (IOException e) {
+					failures++;
+					System.out.println(c + " " + size + ": " + e);
+				}
+
+				try {
+					decrypt(enc, r, "wrong");
+					failures++;
+					System.out.println(c + " " + size
+							+ ": wrong password accepted");
+				} catch (WrongPasswordException e) {
+				}
+
+				// a damaged message must not finish
+				if (size > 0) {
+					byte[] bad = enc.clone();
+					bad[bad.length - 5] ^= 1;
+					try {
+						decrypt(bad, r);
+						failures++;
+						System.out.println(c + " " + size
+								+ ": damage not detected");
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+
+		System.out.println(failures == 0 ? "PASSED" : failures + " FAILED");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static byte[] encrypt(byte[] data, OpenPGPCompression c)
+			throws Exception {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		OutputStream os = OpenPGPFactory.getOutputStream(bo, "password", c,
+				512);
+		os.write(data);
+		os.close();
+		return bo.toByteArray();
+	}
+
+	private static byte[] decrypt(byte[] enc, Random r) throws Exception {
+		return decrypt(enc, r, "password");
+	}
+
+	private static byte[] decrypt(byte[] enc, Random r, String password)
+			throws Exception {
+		OpenPGPPushDecoder d = new OpenPGPPushDecoder(password);
+		ByteArrayOutputStream res = new ByteArrayOutputStream();
+		int off = 0;
+		while (off < enc.length) {
+			int n = Math.min(enc.length - off, 1 + r.nextInt(700));
+			res.write(d.update(enc, off, n));
+			off += n;
+		}
+		d.finish();
+		return res.toByteArray();
+	}
+}
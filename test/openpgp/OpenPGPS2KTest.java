@@ -0,0 +1,107 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Checks the Iterated and Salted S2K against known answers, computed
+ * independently, and against a plain implementation of RFC 4880 3.7.1.3
+ * around the chunk boundaries. Exits with 1 on failure.
+ *
+ * java -cp bin:test-bin openpgp.OpenPGPS2KTest
+ */
+public class OpenPGPS2KTest {
+	// salt 1..8, coded count 0x9F (1015808 bytes), SHA256
+	private static final String[][] KNOWN = {
+			{ "password",
+					"0407de23dd117f556beb0352b64b065da6b3f27fffd13d1d2c394ea8c1e55213" },
+			{ "", "6df232c26cbc77c5a61fa15b7adb8f65897b9e699625f04b273854792c9d0744" } };
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		byte[] salt = { 1, 2, 3, 4, 5, 6, 7, 8 };
+		for (String[] k : KNOWN) {
+			byte[] pw = k[0].getBytes(StandardCharsets.UTF_8);
+			check("\"" + k[0] + "\"", OpenPGPS2K.deriveKey(salt, 0, 0x9F, pw),
+					hex(k[1]));
+		}
+
+		// short and long passwords, and lengths around the 4 KB chunk
+		Random r = new Random(42);
+		int[] lengths = { 0, 1, 7, 8, 9, 100, 4079, 4080, 4088, 4095, 4096,
+				4097, 8192, 9000 };
+		for (int len : lengths) {
+			byte[] pw = new byte[len];
+			r.nextBytes(pw);
+			for (int c : new int[] { 0x00, 0x01, 0x10, 0x60, 0x9F }) {
+				check(len + " bytes, count " + c, OpenPGPS2K.deriveKey(salt,
+						0, c, pw), reference(salt, 0, c, pw));
+			}
+		}
+
+		// the salt can be in the middle of a packet
+		byte[] packet = new byte[20];
+		r.nextBytes(packet);
+		byte[] pw = "secret".getBytes(StandardCharsets.UTF_8);
+		check("salt offset", OpenPGPS2K.deriveKey(packet, 5, 0x60, pw),
+				reference(packet, 5, 0x60, pw));
+
+		System.out.println(failures == 0 ? "PASSED" : failures + " FAILED");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static void check(String name, byte[] key, byte[] expected) {
+		if (!Arrays.equals(key, expected)) {
+			failures++;
+			System.out.println(name + ": wrong key");
+		}
+	}
+
+	/*
+	 * salt and password repeated up to count bytes, but at least once
+	 */
+	private static byte[] reference(byte[] salt, int off, int c, byte[] pw)
+			throws Exception {
+		byte[] b = new byte[8 + pw.length];
+		System.arraycopy(salt, off, b, 0, 8);
+		System.arraycopy(pw, 0, b, 8, pw.length);
+		int count = Math.max(OpenPGPS2K.decodeCount(c), b.length);
+
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		for (int i = 0; i < count; i++) {
+			md.update(b[i % b.length]);
+		}
+		return md.digest();
+	}
+
+	private static byte[] hex(String s) {
+		byte[] b = new byte[s.length() / 2];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		}
+		return b;
+	}
+}
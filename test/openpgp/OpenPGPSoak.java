@@ -0,0 +1,466 @@
+/*
+ * OpenPGPStream - Small library for standards compliant sym. encrypted files
+ * Copyright (C) 2014  Andreas Rohner
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package openpgp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+
+/*
+ * Long running round trip test. Generated data is encrypted on one thread
+ * and decrypted on another, connected by a small in-memory pipe, so
+ * nothing touches the disk and the memory usage does not depend on the
+ * size. Fails if the data differs, if the heap or the resident memory of
+ * the process grows, or if the throughput of the last part of a run drops
+ * below half of the first part. Edge cases around the partial packet
+ * boundaries and the MDC are checked first.
+ *
+ * java -cp bin:test-bin openpgp.OpenPGPSoak [-g GB] [-c ALGO] [-b N]
+ */
+public class OpenPGPSoak {
+	private static final String PASSWORD = "soak";
+	// number of throughput samples per run
+	private static final int WINDOWS = 10;
+	// allowed growth of the heap after GC and of the resident memory
+	private static final long MAX_GROWTH = 64L * 1024 * 1024;
+
+	private long size = 1L << 30;
+	private List<OpenPGPCompression> compressions = new ArrayList<OpenPGPCompression>();
+	private int[] bufsizes = { 512, 8 * 1024, 64 * 1024, 1024 * 1024 };
+	private int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		OpenPGPSoak s = new OpenPGPSoak();
+		// the private algorithms only if asked for
+		for (OpenPGPCompression c : OpenPGPCompression.values()) {
+			if (!c.isPrivate()) {
+				s.compressions.add(c);
+			}
+		}
+
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("-g") && i + 1 < args.length) {
+				s.size = (long) (Double.parseDouble(args[++i]) * (1L << 30));
+			} else if (a.equals("-c") && i + 1 < args.length) {
+				OpenPGPCompression c = OpenPGPCompression.valueOf(args[++i]
+						.toUpperCase(Locale.ROOT));
+				OpenPGPCompressionCodecs.setEnabled(c, true);
+				s.compressions.clear();
+				s.compressions.add(c);
+			} else if (a.equals("-b") && i + 1 < args.length) {
+				s.bufsizes = new int[] { Integer.parseInt(args[++i]) };
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + a);
+			}
+		}
+
+		s.edgeCases();
+		for (OpenPGPCompression c : s.compressions) {
+			for (int bs : s.bufsizes) {
+				s.soak(c, bs);
+			}
+		}
+
+		System.out.println(s.failures == 0 ? "PASSED" : "FAILED: "
+				+ s.failures);
+		System.exit(s.failures == 0 ? 0 : 1);
+	}
+
+	private void fail(String msg) {
+		failures++;
+		System.out.println("FAIL " + msg);
+	}
+
+	/*
+	 * Lengths around the partial packet boundaries of every layer and the
+	 * 22 bytes of the MDC, and damaged or truncated MDCs
+	 */
+	private void edgeCases() throws Exception {
+		int count = 0;
+		for (OpenPGPCompression c : compressions) {
+			for (int bs : new int[] { 512, 8192 }) {
+				for (int k = 0; k <= 3; k++) {
+					for (int d = -45; d <= 45; d++) {
+						int len = k * bs + d;
+						if (len < 0)
+							continue;
+
+						byte[] data = new byte[len];
+						new Generator(len).read(data, 0, len);
+						byte[] enc = encrypt(data, c, bs);
+						if (!Arrays.equals(data, decrypt(enc, bs))) {
+							fail(c + " " + bs + " length " + len);
+						}
+						if (Math.abs(d) % 22 <= 1) {
+							checkDamaged(enc, bs, c + " " + bs + " length " + len);
+						}
+						count++;
+					}
+				}
+			}
+		}
+		System.out.println("edge cases: " + count + " lengths");
+	}
+
+	private void checkDamaged(byte[] enc, int bs, String name)
+			throws Exception {
+		// any bit of the MDC trailer
+		for (int i = enc.length - 22; i < enc.length; i += 7) {
+			byte[] b = enc.clone();
+			b[i] ^= 0x10;
+			try {
+				decrypt(b, bs);
+				fail(name + " damaged byte " + (enc.length - i)
+						+ " from the end accepted");
+			} catch (InvalidChecksumException e) {
+			}
+		}
+
+		// truncated within the MDC
+		for (int cut : new int[] { 1, 21, 22 }) {
+			try {
+				decrypt(Arrays.copyOf(enc, enc.length - cut), bs);
+				fail(name + " truncated by " + cut + " accepted");
+			} catch (EOFException | InvalidChecksumException e) {
+			}
+		}
+	}
+
+	private static byte[] encrypt(byte[] data, OpenPGPCompression c, int bs)
+			throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		OutputStream os = OpenPGPFactory.getOutputStream(bos, PASSWORD, c, bs);
+		os.write(data);
+		os.close();
+		return bos.toByteArray();
+	}
+
+	private static byte[] decrypt(byte[] enc, int bs) throws Exception {
+		InputStream is = OpenPGPFactory.getInputStream(
+				new ByteArrayInputStream(enc), PASSWORD, bs);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] b = new byte[1000];
+		int n;
+		while ((n = is.read(b)) != -1) {
+			bos.write(b, 0, n);
+		}
+		is.close();
+		return bos.toByteArray();
+	}
+
+	private void soak(final OpenPGPCompression c, final int bs)
+			throws Exception {
+		String name = c + " " + bs;
+		long heap0 = usedHeap();
+		long rss0 = residentMemory();
+		long gcCount0 = gcCount();
+		long gcTime0 = gcTime();
+
+		final Pipe pipe = new Pipe(16, bs);
+		final CRC32 sent = new CRC32();
+		final Exception[] writeError = new Exception[1];
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					OutputStream os = OpenPGPFactory.getOutputStream(pipe, PASSWORD,
+							c, bs);
+					Generator g = new Generator(size);
+					byte[] b = new byte[64 * 1024];
+					int n;
+					while ((n = g.read(b, 0, b.length)) != -1) {
+						sent.update(b, 0, n);
+						os.write(b, 0, n);
+					}
+					os.close();
+				} catch (Exception e) {
+					writeError[0] = e;
+					pipe.abort();
+				}
+			}
+		}, "OpenPGP soak writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		CRC32 received = new CRC32();
+		double[] rates = new double[WINDOWS];
+		long total = 0;
+		try {
+			InputStream is = OpenPGPFactory.getInputStream(pipe.input(),
+					PASSWORD, bs);
+			byte[] b = new byte[64 * 1024];
+			long window = Math.max(size / WINDOWS, 1);
+			long start = System.nanoTime();
+			int n;
+			while ((n = is.read(b)) != -1) {
+				received.update(b, 0, n);
+				long before = total;
+				total += n;
+				if (total / window != before / window && before / window < WINDOWS) {
+					long now = System.nanoTime();
+					rates[(int) (before / window)] = window / 1048576.0
+							/ ((now - start) / 1e9);
+					start = now;
+				}
+			}
+			is.close();
+		} catch (Exception e) {
+			fail(name + " " + e);
+		}
+		writer.join();
+
+		if (writeError[0] != null) {
+			fail(name + " writer " + writeError[0]);
+		}
+		if (total != size || sent.getValue() != received.getValue()) {
+			fail(name + " data differs after " + total + " bytes");
+		}
+
+		// the throughput must not decay over time
+		double first = (rates[0] + rates[1] + rates[2]) / 3;
+		double last = (rates[WINDOWS - 3] + rates[WINDOWS - 2] + rates[WINDOWS - 1]) / 3;
+		if (last < first / 2) {
+			fail(String.format(Locale.ROOT,
+					"%s throughput dropped from %.1f to %.1f MB/s", name,
+					first, last));
+		}
+
+		long heap = usedHeap() - heap0;
+		long rss = residentMemory() - rss0;
+		if (heap > MAX_GROWTH) {
+			fail(name + " heap grew by " + heap / 1024 + " KB");
+		}
+		if (rss0 > 0 && rss > MAX_GROWTH) {
+			fail(name + " resident memory grew by " + rss / 1024 + " KB");
+		}
+
+		double avg = 0;
+		for (double r : rates) {
+			avg += r / WINDOWS;
+		}
+		System.out.println(String.format(Locale.ROOT,
+				"%s: %.1f MB/s (first %.1f, last %.1f), heap %+d KB, "
+						+ "rss %+d KB, %d GCs in %d ms", name, avg, first,
+				last, heap / 1024, rss / 1024, gcCount() - gcCount0,
+				gcTime() - gcTime0));
+	}
+
+	private static long usedHeap() {
+		MemoryMXBean m = ManagementFactory.getMemoryMXBean();
+		System.gc();
+		System.gc();
+		return m.getHeapMemoryUsage().getUsed();
+	}
+
+	// resident set size on Linux, 0 elsewhere
+	private static long residentMemory() {
+		try {
+			String s = new String(Files.readAllBytes(Paths
+					.get("/proc/self/statm")), StandardCharsets.US_ASCII);
+			return Long.parseLong(s.trim().split(" ")[1]) * 4096;
+		} catch (IOException | RuntimeException e) {
+			return 0;
+		}
+	}
+
+	private static long gcCount() {
+		long n = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			n += Math.max(gc.getCollectionCount(), 0);
+		}
+		return n;
+	}
+
+	private static long gcTime() {
+		long n = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			n += Math.max(gc.getCollectionTime(), 0);
+		}
+		return n;
+	}
+
+	/*
+	 * Reproducible data, half of every 64K block is random and the other
+	 * half is text like, so that the compression has something to do
+	 * without being too slow
+	 */
+	private static class Generator extends InputStream {
+		private static final byte[] TEXT = ("Lorem ipsum dolor sit amet, "
+				+ "consectetur adipiscing elit, sed do eiusmod tempor.\n")
+				.getBytes(StandardCharsets.US_ASCII);
+
+		private long left;
+		private long pos = 0;
+		private long state = 0x9E3779B97F4A7C15L;
+
+		Generator(long size) {
+			left = size;
+		}
+
+		@Override
+		public int read() {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (left == 0)
+				return -1;
+			len = (int) Math.min(len, left);
+			for (int i = 0; i < len; i++, pos++) {
+				if ((pos & 0x8000) == 0) {
+					if ((pos & 7) == 0) {
+						// xorshift64
+						state ^= state << 13;
+						state ^= state >>> 7;
+						state ^= state << 17;
+					}
+					b[off + i] = (byte) (state >>> ((pos & 7) << 3));
+				} else {
+					b[off + i] = TEXT[(int) (pos % TEXT.length)];
+				}
+			}
+			left -= len;
+			return len;
+		}
+	}
+
+	/*
+	 * Bounded pipe between the two threads, unlike PipedInputStream it
+	 * never sleeps
+	 */
+	private static class Pipe extends OutputStream {
+		private static final byte[] EOF = new byte[0];
+
+		private final BlockingQueue<byte[]> queue;
+		private final int chunk;
+		private byte[] buf;
+		private int pos = 0;
+		private volatile boolean aborted = false;
+
+		Pipe(int depth, int chunk) {
+			this.queue = new ArrayBlockingQueue<byte[]>(depth);
+			this.chunk = Math.max(chunk, 4096);
+			this.buf = new byte[this.chunk];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, chunk - pos);
+				System.arraycopy(b, off, buf, pos, n);
+				pos += n;
+				off += n;
+				len -= n;
+				if (pos == chunk) {
+					put(buf);
+					buf = new byte[chunk];
+					pos = 0;
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (pos > 0) {
+				put(Arrays.copyOf(buf, pos));
+				pos = 0;
+			}
+			put(EOF);
+		}
+
+		void abort() {
+			aborted = true;
+			queue.clear();
+			queue.offer(EOF);
+		}
+
+		private void put(byte[] b) throws IOException {
+			try {
+				queue.put(b);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		InputStream input() {
+			return new InputStream() {
+				private byte[] cur = null;
+				private int cpos = 0;
+
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if (cur == null || cpos == cur.length) {
+						if (cur == EOF)
+							return -1;
+						try {
+							cur = queue.take();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new InterruptedIOException();
+						}
+						cpos = 0;
+						if (cur == EOF) {
+							if (aborted)
+								throw new IOException("Writer failed");
+							return -1;
+						}
+					}
+					int n = Math.min(len, cur.length - cpos);
+					System.arraycopy(cur, cpos, b, off, n);
+					cpos += n;
+					return n;
+				}
+			};
+		}
+	}
+}